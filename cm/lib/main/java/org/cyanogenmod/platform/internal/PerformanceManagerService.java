@@ -58,6 +58,7 @@ import static cyanogenmod.power.PerformanceManager.PROFILE_HIGH_PERFORMANCE;
 import static cyanogenmod.power.PerformanceManager.PROFILE_POWER_SAVE;
 import static cyanogenmod.providers.CMSettings.Secure.APP_PERFORMANCE_PROFILES_ENABLED;
 import static cyanogenmod.providers.CMSettings.Secure.PERFORMANCE_PROFILE;
+import static cyanogenmod.providers.CMSettings.Secure.getBoolean;
 import static cyanogenmod.providers.CMSettings.Secure.getInt;
 import static cyanogenmod.providers.CMSettings.Secure.getUriFor;
 import static cyanogenmod.providers.CMSettings.Secure.putInt;
@@ -178,7 +179,7 @@ public class PerformanceManagerService extends CMSystemService {
         @Override
         public void onChange(boolean selfChange) {
             int profile = getInt(mCR, PERFORMANCE_PROFILE, PROFILE_BALANCED);
-            boolean boost = getInt(mCR, APP_PERFORMANCE_PROFILES_ENABLED, 1) == 1;
+            boolean boost = getBoolean(mCR, APP_PERFORMANCE_PROFILES_ENABLED, true);
 
             synchronized (mLock) {
                 if (hasProfiles() && mProfiles.containsKey(profile)) {
@@ -26,7 +26,13 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiSsid;
 import android.os.Message;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.SparseArray;
 import com.android.internal.policy.IKeyguardService;
 import cyanogenmod.providers.CMSettings;
 import org.xmlpull.v1.XmlPullParser;
@@ -41,6 +47,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.XmlResourceParser;
+import android.os.Binder;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.UserHandle;
@@ -49,25 +56,37 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.os.ParcelUuid;
 
+import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 
 import cyanogenmod.app.CMContextConstants;
+import cyanogenmod.app.IProfileChangeListener;
 import cyanogenmod.app.Profile;
 import cyanogenmod.app.ProfileGroup;
 import cyanogenmod.app.ProfileManager;
+import cyanogenmod.app.ProfileSummary;
 import cyanogenmod.app.IProfileManager;
 
-import java.util.Collection;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** @hide */
 public class ProfileManagerService extends CMSystemService {
@@ -81,8 +100,23 @@ public class ProfileManagerService extends CMSystemService {
 
     /* package */ static final File PROFILE_FILE =
             new File(Environment.getDataSystemDirectory(), "profiles.xml");
+    /* package */ static final File PROFILE_DIR =
+            new File(Environment.getDataSystemDirectory(), "profiles");
 
     private static final int MSG_SEND_PROFILE_STATE = 10;
+    private static final int MSG_PERSIST = 11;
+    private static final int MSG_NOTIFY_CHANGED = 12;
+
+    // Changes made within this delay of each other are written to disk together
+    private static final long PERSIST_DELAY_MS = 1000;
+    // Generations count up from 0, so this never matches one
+    private static final long ANY_GENERATION = -1;
+    // How long a connection thread waits for more work before exiting
+    private static final long CONNECTION_KEEP_ALIVE_S = 30;
+
+    // Guards the maps below and changes of the active profile, so the persist thread can take
+    // a consistent copy of them while binder threads change them.
+    private final Object mLock = new Object();
 
     private Map<UUID, Profile> mProfiles;
 
@@ -91,7 +125,15 @@ public class ProfileManagerService extends CMSystemService {
 
     private Map<UUID, NotificationGroup> mGroups;
 
-    private Profile mActiveProfile;
+    // Package name -> the notification group holding it, looked up for every notification
+    private Map<String, NotificationGroup> mGroupsByPackage;
+
+    // Changed under mLock, read without it
+    private volatile Profile mActiveProfile;
+
+    // The profiles sorted by name, and the generation they were sorted at. Guarded by mLock.
+    private Profile[] mSortedProfiles;
+    private long mSortedGeneration;
 
     // Well-known UUID of the wildcard group
     private static final UUID mWildcardUUID =
@@ -100,9 +142,35 @@ public class ProfileManagerService extends CMSystemService {
 
     private Context mContext;
     private Handler mHandler;
-    private boolean mDirty;
+    private final ProfileStore mStore = new ProfileStore(PROFILE_DIR);
+    // Changes not yet written to the store, set by binder threads and taken by whichever
+    // thread persists. Guarded by mPendingLock.
+    private final Object mPendingLock = new Object();
+    private boolean mPendingAll;
+    private boolean mPendingActive;
+    private final Set<UUID> mPendingProfiles = new ArraySet<UUID>();
+    private final Set<UUID> mPendingGroups = new ArraySet<UUID>();
+    private final Set<UUID> mRemovedProfiles = new ArraySet<UUID>();
+    private final Set<UUID> mRemovedGroups = new ArraySet<UUID>();
+    // Whether profiles.xml must be exported even if no record changed
+    private boolean mPendingExport;
+    private final ServiceThread mPersistThread;
+    private final Handler mPersistHandler;
     private BackupManager mBackupManager;
     private ProfileTriggerHelper mTriggerHelper;
+    private final ProfileTriggerIndex mTriggerIndex = new ProfileTriggerIndex();
+
+    // Bumped after every change, before listeners are told about it
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final RemoteCallbackList<IProfileChangeListener> mChangeListeners =
+            new RemoteCallbackList<IProfileChangeListener>();
+
+    // The last profile application and how long its steps took, for dumps.
+    // Guarded by mApplyLock.
+    private final Object mApplyLock = new Object();
+    private Profile mLastApplied;
+    private long mLastAppliedTime;
+    private ArrayMap<String, Long> mLastApplyStepTimesMs;
     private Profile mEmptyProfile;
 
     private Runnable mBindKeyguard = new Runnable() {
@@ -134,10 +202,10 @@ public class ProfileManagerService extends CMSystemService {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
-                persistIfDirty();
+                flushPersist();
                 initialize();
             } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
-                persistIfDirty();
+                flushPersist();
             }
         }
     };
@@ -155,6 +223,22 @@ public class ProfileManagerService extends CMSystemService {
                     if (ProfileManager.PROFILES_STATE_ENABLED == msg.arg1) {
                         maybeApplyActiveProfile();
                     }
+                    // Clients see the empty profile while profiles are disabled
+                    notifyChanged();
+                    return true;
+                case MSG_NOTIFY_CHANGED:
+                    final long generation = mGeneration.get();
+                    int i = mChangeListeners.beginBroadcast();
+                    while (i > 0) {
+                        i--;
+                        try {
+                            mChangeListeners.getBroadcastItem(i).onProfilesChanged(generation);
+                        } catch (RemoteException e) {
+                            // The RemoteCallbackList will take care of removing
+                            // the dead object for us.
+                        }
+                    }
+                    mChangeListeners.finishBroadcast();
                     return true;
             }
             return false;
@@ -198,7 +282,7 @@ public class ProfileManagerService extends CMSystemService {
             }
         }
 
-        if (selectProfile) mActiveProfile.doSelect(mContext, mKeyguardService);
+        if (selectProfile) applyProfile(mActiveProfile, mKeyguardService);
     }
 
     private String getActiveSSID() {
@@ -233,6 +317,17 @@ public class ProfileManagerService extends CMSystemService {
         super(context);
         mContext = context;
         mHandler = new Handler(mHandlerCallback);
+        mPersistThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
+        mPersistThread.start();
+        mPersistHandler = new Handler(mPersistThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_PERSIST) {
+                    persistIfDirty();
+                }
+            }
+        };
         if (context.getPackageManager().hasSystemFeature(
                 CMContextConstants.Features.PROFILES)) {
             publishBinderService(CMContextConstants.CM_PROFILE_SERVICE, mService);
@@ -287,22 +382,35 @@ public class ProfileManagerService extends CMSystemService {
     }
 
     private void initialize() {
-        initialize(false);
+        initialize(false, false);
+    }
+
+    private void initialize(boolean skipFile, boolean fromLegacyFile) {
+        synchronized (mLock) {
+            initializeLocked(skipFile, fromLegacyFile);
+        }
     }
 
-    private void initialize(boolean skipFile) {
+    private void initializeLocked(boolean skipFile, boolean fromLegacyFile) {
         mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, this);
         mProfiles = new HashMap<UUID, Profile>();
         mProfileNames = new HashMap<String, UUID>();
         mGroups = new HashMap<UUID, NotificationGroup>();
+        mGroupsByPackage = new HashMap<String, NotificationGroup>();
+        mTriggerIndex.clear();
         mEmptyProfile = new Profile("EmptyProfile");
-        mDirty = false;
+        clearPending();
 
         boolean init = skipFile;
 
         if (!skipFile) {
             try {
-                loadFromFile();
+                if (!fromLegacyFile && mStore.exists()) {
+                    loadFromStore();
+                } else {
+                    // First boot with the store, or a restore: import profiles.xml
+                    loadFromFile();
+                }
             } catch (XmlPullParserException e) {
                 init = true;
             } catch (IOException e) {
@@ -325,7 +433,7 @@ public class ProfileManagerService extends CMSystemService {
         public void resetAll() {
             long token = clearCallingIdentity();
             enforceChangePermissions();
-            initialize(true);
+            initialize(true, false);
             restoreCallingIdentity(token);
         }
 
@@ -336,7 +444,12 @@ public class ProfileManagerService extends CMSystemService {
                 Log.w(TAG, "Unable to set active profile because profiles are disabled.");
                 return false;
             }
-            if (!mProfileNames.containsKey(profileName)) {
+            final Profile profile;
+            synchronized (mLock) {
+                final UUID uuid = mProfileNames.get(profileName);
+                profile = uuid == null ? null : mProfiles.get(uuid);
+            }
+            if (profile == null) {
                 // Since profileName could not be casted into a UUID, we can call it a string.
                 Log.w(TAG, "Unable to find profile to set active, based on string: " + profileName);
                 return false;
@@ -352,7 +465,7 @@ public class ProfileManagerService extends CMSystemService {
              * - broadcast INTENT_ACTION_PROFILE_SELECTED
              */
             long token = clearCallingIdentity();
-            setActiveProfileInternal(mProfiles.get(mProfileNames.get(profileName)), true);
+            setActiveProfileInternal(profile, true);
             restoreCallingIdentity(token);
             return true;
         }
@@ -379,21 +492,20 @@ public class ProfileManagerService extends CMSystemService {
         public boolean addProfile(Profile profile) {
             enforceChangePermissions();
             addProfileInternal(profile);
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
             return true;
         }
 
         @Override
         @Deprecated
         public Profile getProfileByName(String profileName) {
-            if (mProfileNames.containsKey(profileName)) {
-                return mProfiles.get(mProfileNames.get(profileName));
-            } else if (mProfiles.containsKey(UUID.fromString((profileName)))) {
-                return mProfiles.get(UUID.fromString(profileName));
-            } else {
-                return null;
+            synchronized (mLock) {
+                if (mProfileNames.containsKey(profileName)) {
+                    return mProfiles.get(mProfileNames.get(profileName));
+                } else if (mProfiles.containsKey(UUID.fromString((profileName)))) {
+                    return mProfiles.get(UUID.fromString(profileName));
+                } else {
+                    return null;
+                }
             }
         }
 
@@ -405,9 +517,9 @@ public class ProfileManagerService extends CMSystemService {
 
         @Override
         public Profile[] getProfiles() {
-            Profile[] profiles = getProfileList().toArray(new Profile[mProfiles.size()]);
-            Arrays.sort(profiles);
-            return profiles;
+            synchronized (mLock) {
+                return getSortedProfilesLocked().clone();
+            }
         }
 
         @Override
@@ -422,37 +534,41 @@ public class ProfileManagerService extends CMSystemService {
         @Override
         public boolean removeProfile(Profile profile) {
             enforceChangePermissions();
-            if (mProfileNames.remove(profile.getName()) != null
-                    && mProfiles.remove(profile.getUuid()) != null) {
-                mDirty = true;
-                long token = clearCallingIdentity();
-                persistIfDirty();
-                restoreCallingIdentity(token);
-                return true;
-            } else {
-                return false;
+            synchronized (mLock) {
+                if (mProfileNames.remove(profile.getName()) != null
+                        && mProfiles.remove(profile.getUuid()) != null) {
+                    mTriggerIndex.remove(profile.getUuid());
+                    markProfileRemoved(profile.getUuid());
+                    return true;
+                } else {
+                    return false;
+                }
             }
         }
 
         @Override
         public void updateProfile(Profile profile) {
             enforceChangePermissions();
-            Profile old = mProfiles.get(profile.getUuid());
+            final boolean isActive;
+            synchronized (mLock) {
+                Profile old = mProfiles.get(profile.getUuid());
 
-            if (old == null) {
-                return;
-            }
+                if (old == null) {
+                    return;
+                }
 
-            mProfileNames.remove(old.getName());
-            mProfileNames.put(profile.getName(), profile.getUuid());
-            mProfiles.put(profile.getUuid(), profile);
-            /* no need to set mDirty, if the profile was actually changed,
-             * it's marked as dirty by itself */
+                mProfileNames.remove(old.getName());
+                mProfileNames.put(profile.getName(), profile.getUuid());
+                mProfiles.put(profile.getUuid(), profile);
+                mTriggerIndex.add(profile);
+                markProfileDirty(profile.getUuid());
+                isActive = mActiveProfile != null
+                        && mActiveProfile.getUuid().equals(profile.getUuid());
+            }
             long token = clearCallingIdentity();
-            persistIfDirty();
 
             // Also update if we changed the active profile
-            if (mActiveProfile != null && mActiveProfile.getUuid().equals(profile.getUuid())) {
+            if (isActive) {
                 setActiveProfileInternal(profile, true);
             }
             restoreCallingIdentity(token);
@@ -460,15 +576,19 @@ public class ProfileManagerService extends CMSystemService {
 
         @Override
         public boolean profileExists(ParcelUuid profileUuid) {
-            return mProfiles.containsKey(profileUuid.getUuid());
+            synchronized (mLock) {
+                return mProfiles.containsKey(profileUuid.getUuid());
+            }
         }
 
         @Override
         @Deprecated
         public boolean profileExistsByName(String profileName) {
-            for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
-                if (entry.getKey().equalsIgnoreCase(profileName)) {
-                    return true;
+            synchronized (mLock) {
+                for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
+                    if (entry.getKey().equalsIgnoreCase(profileName)) {
+                        return true;
+                    }
                 }
             }
             return false;
@@ -477,9 +597,11 @@ public class ProfileManagerService extends CMSystemService {
         @Override
         @Deprecated
         public boolean notificationGroupExistsByName(String notificationGroupName) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.getName().equalsIgnoreCase(notificationGroupName)) {
-                    return true;
+            synchronized (mLock) {
+                for (NotificationGroup group : mGroups.values()) {
+                    if (group.getName().equalsIgnoreCase(notificationGroupName)) {
+                        return true;
+                    }
                 }
             }
             return false;
@@ -487,56 +609,56 @@ public class ProfileManagerService extends CMSystemService {
 
         @Override
         public NotificationGroup[] getNotificationGroups() {
-            return mGroups.values().toArray(new NotificationGroup[mGroups.size()]);
+            synchronized (mLock) {
+                return mGroups.values().toArray(new NotificationGroup[mGroups.size()]);
+            }
         }
 
         @Override
         public void addNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
             addNotificationGroupInternal(group);
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
         }
 
         @Override
         public void removeNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            mDirty |= mGroups.remove(group.getUuid()) != null;
-            // Remove the corresponding ProfileGroup from all the profiles too if
-            // they use it.
-            for (Profile profile : mProfiles.values()) {
-                profile.removeProfileGroup(group.getUuid());
+            synchronized (mLock) {
+                if (mGroups.remove(group.getUuid()) != null) {
+                    indexGroupPackages(group.getUuid(), null);
+                    markGroupRemoved(group.getUuid());
+                }
+                // Remove the corresponding ProfileGroup from all the profiles too if
+                // they use it.
+                for (Profile profile : mProfiles.values()) {
+                    if (profile.getProfileGroup(group.getUuid()) != null) {
+                        profile.removeProfileGroup(group.getUuid());
+                        markProfileDirty(profile.getUuid());
+                    }
+                }
             }
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
         }
 
         @Override
         public void updateNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            NotificationGroup old = mGroups.get(group.getUuid());
-            if (old == null) {
-                return;
-            }
+            synchronized (mLock) {
+                NotificationGroup old = mGroups.get(group.getUuid());
+                if (old == null) {
+                    return;
+                }
 
-            mGroups.put(group.getUuid(), group);
-            /* no need to set mDirty, if the group was actually changed,
-             * it's marked as dirty by itself */
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
+                mGroups.put(group.getUuid(), group);
+                indexGroupPackages(group.getUuid(), group);
+                markGroupDirty(group.getUuid());
+            }
         }
 
         @Override
         public NotificationGroup getNotificationGroupForPackage(String pkg) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.hasPackage(pkg)) {
-                    return group;
-                }
+            synchronized (mLock) {
+                return mGroupsByPackage.get(pkg);
             }
-            return null;
         }
 
         @Override
@@ -544,32 +666,91 @@ public class ProfileManagerService extends CMSystemService {
             if (uuid.getUuid().equals(mWildcardGroup.getUuid())) {
                 return mWildcardGroup;
             }
-            return mGroups.get(uuid.getUuid());
+            synchronized (mLock) {
+                return mGroups.get(uuid.getUuid());
+            }
         }
 
         @Override
         public boolean isEnabled() {
-            long token = clearCallingIdentity();
-            try {
-                return CMSettings.System.getIntForUser(mContext.getContentResolver(),
-                        CMSettings.System.SYSTEM_PROFILES_ENABLED,
-                        ProfileManager.PROFILES_STATE_ENABLED,
-                        UserHandle.USER_CURRENT) == ProfileManager.PROFILES_STATE_ENABLED;
-            } finally {
-                restoreCallingIdentity(token);
+            return isEnabledInternal();
+        }
+
+        @Override
+        public boolean registerChangeListener(IProfileChangeListener listener) {
+            return mChangeListeners.register(listener);
+        }
+
+        @Override
+        public boolean unregisterChangeListener(IProfileChangeListener listener) {
+            return mChangeListeners.unregister(listener);
+        }
+
+        @Override
+        public long getGeneration() {
+            return mGeneration.get();
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("ProfileManager Service State:");
+            pw.println();
+            final Profile active = mActiveProfile;
+            pw.println(" Active profile: " + (active == null ? null
+                    : active.getName() + " (" + active.getUuid() + ")"));
+            synchronized (mLock) {
+                pw.println(" Profiles: " + mProfiles.size() + ", notification groups: "
+                        + mGroups.size() + ", generation: " + mGeneration.get());
+            }
+
+            synchronized (mApplyLock) {
+                if (mLastApplied == null) {
+                    pw.println(" No profile applied yet.");
+                    return;
+                }
+                pw.println(String.format(" Last applied: %1$s at %2$tH:%2$tM:%2$tS.%2$tL",
+                        mLastApplied.getName(), new Date(mLastAppliedTime)));
+                // Connection steps may still be finishing in the background
+                synchronized (mLastApplyStepTimesMs) {
+                    for (int i = 0; i < mLastApplyStepTimesMs.size(); i++) {
+                        pw.println("  " + mLastApplyStepTimesMs.keyAt(i) + ": "
+                                + mLastApplyStepTimesMs.valueAt(i) + "ms");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public ProfileSummary[] getProfileSummaries() {
+            return getProfileSummariesInternal(0, Integer.MAX_VALUE, ANY_GENERATION);
+        }
+
+        @Override
+        public ProfileSummary[] getProfileSummariesPaged(int offset, int limit,
+                long generation) {
+            if (offset < 0 || limit < 0 || generation < 0) {
+                throw new IllegalArgumentException("Invalid page: offset=" + offset
+                        + " limit=" + limit + " generation=" + generation);
             }
+            return getProfileSummariesInternal(offset, limit, generation);
         }
     };
 
     private void addProfileInternal(Profile profile) {
-        // Make sure this profile has all of the correct groups.
-        for (NotificationGroup group : mGroups.values()) {
-            ensureGroupInProfile(profile, group, false);
+        synchronized (mLock) {
+            // Make sure this profile has all of the correct groups.
+            for (NotificationGroup group : mGroups.values()) {
+                ensureGroupInProfile(profile, group, false);
+            }
+            ensureGroupInProfile(profile, mWildcardGroup, true);
+            mProfiles.put(profile.getUuid(), profile);
+            mProfileNames.put(profile.getName(), profile.getUuid());
+            mTriggerIndex.add(profile);
+            markProfileDirty(profile.getUuid());
         }
-        ensureGroupInProfile(profile, mWildcardGroup, true);
-        mProfiles.put(profile.getUuid(), profile);
-        mProfileNames.put(profile.getName(), profile.getUuid());
-        mDirty = true;
     }
 
     private void ensureGroupInProfile(Profile profile,
@@ -591,15 +772,17 @@ public class ProfileManagerService extends CMSystemService {
     }
 
     private Profile getProfileInternal(UUID profileUuid) {
-        // use primary UUID first
-        if (mProfiles.containsKey(profileUuid)) {
-            return mProfiles.get(profileUuid);
-        }
-        // if no match was found: try secondary UUID
-        for (Profile p : mProfiles.values()) {
-            for (UUID uuid : p.getSecondaryUuids()) {
-                if (profileUuid.equals(uuid)) {
-                    return p;
+        synchronized (mLock) {
+            // use primary UUID first
+            if (mProfiles.containsKey(profileUuid)) {
+                return mProfiles.get(profileUuid);
+            }
+            // if no match was found: try secondary UUID
+            for (Profile p : mProfiles.values()) {
+                for (UUID uuid : p.getSecondaryUuids()) {
+                    if (profileUuid.equals(uuid)) {
+                        return p;
+                    }
                 }
             }
         }
@@ -607,11 +790,55 @@ public class ProfileManagerService extends CMSystemService {
         return null;
     }
 
-    /* package */ Collection<Profile> getProfileList() {
-        return mProfiles.values();
+    /**
+     * @param generation The generation the caller read earlier pages at, or ANY_GENERATION.
+     * @throws IllegalStateException If the profiles changed since that generation.
+     */
+    private ProfileSummary[] getProfileSummariesInternal(int offset, int limit,
+            long generation) {
+        // Read before taking mLock, since it calls the settings provider
+        final boolean enabled = isEnabledInternal();
+        final Profile[] profiles;
+        final Profile active;
+        synchronized (mLock) {
+            // Pages of different generations may not line up
+            if (generation != ANY_GENERATION && generation != mGeneration.get()) {
+                throw new IllegalStateException("Profiles changed since generation "
+                        + generation);
+            }
+            // Sorted like getProfiles(), so pages line up
+            profiles = getSortedProfilesLocked();
+            active = enabled ? mActiveProfile : null;
+        }
+        final int start = Math.min(offset, profiles.length);
+        final int end = (int) Math.min(profiles.length, (long) start + limit);
+        final ProfileSummary[] summaries = new ProfileSummary[end - start];
+        for (int i = start; i < end; i++) {
+            summaries[i - start] = new ProfileSummary(profiles[i], profiles[i] == active);
+        }
+        return summaries;
     }
 
-    private String getXmlString() {
+    /**
+     * @return The profiles sorted by name, sorted again only after they changed. Must not be
+     *     changed.
+     */
+    private Profile[] getSortedProfilesLocked() {
+        final long generation = mGeneration.get();
+        if (mSortedProfiles == null || mSortedGeneration != generation) {
+            final Profile[] profiles = mProfiles.values().toArray(new Profile[mProfiles.size()]);
+            Arrays.sort(profiles);
+            mSortedProfiles = profiles;
+            mSortedGeneration = generation;
+        }
+        return mSortedProfiles;
+    }
+
+    /* package */ ProfileTriggerIndex getTriggerIndex() {
+        return mTriggerIndex;
+    }
+
+    private String getXmlStringLocked() {
         StringBuilder builder = new StringBuilder();
         builder.append("<profiles>\n<active>");
         builder.append(TextUtils.htmlEncode(mActiveProfile.getUuid().toString()));
@@ -627,36 +854,222 @@ public class ProfileManagerService extends CMSystemService {
         return builder.toString();
     }
 
+    private void markProfileDirty(UUID uuid) {
+        synchronized (mPendingLock) {
+            mRemovedProfiles.remove(uuid);
+            mPendingProfiles.add(uuid);
+        }
+        schedulePersist();
+        notifyChanged();
+    }
+
+    private void markProfileRemoved(UUID uuid) {
+        synchronized (mPendingLock) {
+            mPendingProfiles.remove(uuid);
+            mRemovedProfiles.add(uuid);
+        }
+        schedulePersist();
+        notifyChanged();
+    }
+
+    private void markGroupDirty(UUID uuid) {
+        synchronized (mPendingLock) {
+            mRemovedGroups.remove(uuid);
+            mPendingGroups.add(uuid);
+        }
+        schedulePersist();
+        notifyChanged();
+    }
+
+    private void markGroupRemoved(UUID uuid) {
+        synchronized (mPendingLock) {
+            mPendingGroups.remove(uuid);
+            mRemovedGroups.add(uuid);
+        }
+        schedulePersist();
+        notifyChanged();
+    }
+
+    private void markActiveDirty() {
+        synchronized (mPendingLock) {
+            mPendingActive = true;
+        }
+        schedulePersist();
+        notifyChanged();
+    }
+
+    /**
+     * Rewrites the whole store with the next write, dropping records of anything no longer
+     * in memory.
+     */
+    private void markAllDirty() {
+        synchronized (mPendingLock) {
+            mPendingAll = true;
+        }
+        schedulePersist();
+        notifyChanged();
+    }
+
+    private void clearPending() {
+        synchronized (mPendingLock) {
+            mPendingAll = false;
+            mPendingActive = false;
+            mPendingExport = false;
+            mPendingProfiles.clear();
+            mPendingGroups.clear();
+            mRemovedProfiles.clear();
+            mRemovedGroups.clear();
+        }
+    }
+
+    /**
+     * Schedules writing the changed records to disk. Changes arriving before the write runs
+     * share it.
+     */
+    private void schedulePersist() {
+        if (!mPersistHandler.hasMessages(MSG_PERSIST)) {
+            mPersistHandler.sendEmptyMessageDelayed(MSG_PERSIST, PERSIST_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes any scheduled changes to disk right away, on the calling thread.
+     */
+    private void flushPersist() {
+        mPersistHandler.removeMessages(MSG_PERSIST);
+        persistIfDirty();
+    }
+
+    /**
+     * Writes the records that changed to the store. Runs on the persist thread, unless
+     * flushed, while binder threads may keep changing the profiles. The changed records are
+     * serialized under mLock, so they are consistent with each other, and written without it.
+     * profiles.xml is exported from the same state before backups are told about the change.
+     */
     private synchronized void persistIfDirty() {
-        boolean dirty = mDirty;
-        if (!dirty) {
+        final boolean all;
+        final boolean active;
+        final boolean export;
+        final Set<UUID> removedProfiles;
+        final Set<UUID> removedGroups;
+        final ArrayMap<UUID, String> profileXml = new ArrayMap<UUID, String>();
+        final ArrayMap<UUID, String> groupXml = new ArrayMap<UUID, String>();
+        final Set<UUID> profileUuids;
+        final Set<UUID> groupUuids;
+        final UUID activeUuid;
+        final String exportXml;
+        synchronized (mLock) {
+            final Set<UUID> profiles;
+            final Set<UUID> groups;
+            // Taken first, so changes made while writing schedule another write
+            synchronized (mPendingLock) {
+                all = mPendingAll;
+                active = mPendingActive;
+                export = mPendingExport;
+                profiles = new ArraySet<UUID>(mPendingProfiles);
+                groups = new ArraySet<UUID>(mPendingGroups);
+                removedProfiles = new ArraySet<UUID>(mRemovedProfiles);
+                removedGroups = new ArraySet<UUID>(mRemovedGroups);
+                mPendingAll = false;
+                mPendingActive = false;
+                mPendingExport = false;
+                mPendingProfiles.clear();
+                mPendingGroups.clear();
+                mRemovedProfiles.clear();
+                mRemovedGroups.clear();
+            }
+
             for (Profile profile : mProfiles.values()) {
-                if (profile.isDirty()) {
-                    dirty = true;
-                    break;
+                if (all || profile.isDirty() || profiles.contains(profile.getUuid())) {
+                    final StringBuilder builder = new StringBuilder();
+                    profile.getXmlString(builder, mContext);
+                    profileXml.put(profile.getUuid(), builder.toString());
                 }
             }
-        }
-        if (!dirty) {
             for (NotificationGroup group : mGroups.values()) {
-                if (group.isDirty()) {
-                    dirty = true;
-                    break;
+                if (all || group.isDirty() || groups.contains(group.getUuid())) {
+                    final StringBuilder builder = new StringBuilder();
+                    group.getXmlString(builder, mContext);
+                    groupXml.put(group.getUuid(), builder.toString());
                 }
             }
+            profileUuids = new ArraySet<UUID>(mProfiles.keySet());
+            groupUuids = new ArraySet<UUID>(mGroups.keySet());
+            activeUuid = mActiveProfile.getUuid();
+            exportXml = getXmlStringLocked();
         }
-        if (dirty) {
-            try {
-                Log.d(TAG, "Saving profile data...");
-                FileWriter fw = new FileWriter(PROFILE_FILE);
-                fw.write(getXmlString());
-                fw.close();
-                Log.d(TAG, "Save completed.");
-                mDirty = false;
-                mBackupManager.dataChanged();
-            } catch (Throwable e) {
-                e.printStackTrace();
+
+        int written = 0;
+        try {
+            for (int i = 0; i < profileXml.size(); i++) {
+                mStore.writeProfile(profileXml.keyAt(i), profileXml.valueAt(i));
+                written++;
             }
+            for (int i = 0; i < groupXml.size(); i++) {
+                mStore.writeGroup(groupXml.keyAt(i), groupXml.valueAt(i));
+                written++;
+            }
+            if (all) {
+                removedProfiles.addAll(mStore.listProfiles());
+                removedGroups.addAll(mStore.listGroups());
+            }
+            for (UUID uuid : removedProfiles) {
+                if (!profileUuids.contains(uuid)) {
+                    mStore.deleteProfile(uuid);
+                    written++;
+                }
+            }
+            for (UUID uuid : removedGroups) {
+                if (!groupUuids.contains(uuid)) {
+                    mStore.deleteGroup(uuid);
+                    written++;
+                }
+            }
+            // Written last, since its presence marks the store as complete
+            if (all || active) {
+                mStore.writeActive(activeUuid);
+                written++;
+            }
+        } catch (Throwable e) {
+            // Retried with the next change or flush
+            Log.e(TAG, "Error saving profile data", e);
+            synchronized (mPendingLock) {
+                mPendingAll = true;
+            }
+        }
+
+        if (written > 0 || export) {
+            if (LOCAL_LOGV) Log.v(TAG, "Saved " + written + " profile record(s)");
+            if (!exportToFile(exportXml)) {
+                // Retried with the next change or flush
+                synchronized (mPendingLock) {
+                    mPendingExport = true;
+                }
+            }
+            mBackupManager.dataChanged();
+        }
+    }
+
+    /**
+     * Writes all profiles to profiles.xml, which backups and older releases read.
+     *
+     * @return Whether the file was written.
+     */
+    private boolean exportToFile(String xmlString) {
+        final AtomicFile file = new AtomicFile(PROFILE_FILE);
+        FileOutputStream fos = null;
+        try {
+            final byte[] xml = xmlString.getBytes(StandardCharsets.UTF_8);
+            fos = file.startWrite();
+            fos.write(xml);
+            file.finishWrite(fos);
+            return true;
+        } catch (Throwable e) {
+            Log.e(TAG, "Error exporting profile data", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+            return false;
         }
     }
 
@@ -668,21 +1081,74 @@ public class ProfileManagerService extends CMSystemService {
 
     // Called by SystemBackupAgent after files are restored to disk.
     void settingsRestored() {
-        initialize();
-        for (Profile p : mProfiles.values()) {
-            p.validateRingtones(mContext);
+        // Restores land in profiles.xml, which replaces the store
+        initialize(false, true);
+        synchronized (mLock) {
+            for (Profile p : mProfiles.values()) {
+                p.validateRingtones(mContext);
+            }
         }
-        persistIfDirty();
+        flushPersist();
     }
 
     private void loadFromFile() throws XmlPullParserException, IOException {
         XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
         XmlPullParser xpp = xppf.newPullParser();
-        FileReader fr = new FileReader(PROFILE_FILE);
-        xpp.setInput(fr);
-        loadXml(xpp, mContext);
-        fr.close();
-        persistIfDirty();
+        // Falls back to the previous version if a write was interrupted
+        FileInputStream fis = new AtomicFile(PROFILE_FILE).openRead();
+        try {
+            xpp.setInput(fis, StandardCharsets.UTF_8.name());
+            loadXml(xpp, mContext);
+        } finally {
+            fis.close();
+        }
+        markAllDirty();
+    }
+
+    private void loadFromStore() throws IOException {
+        // Groups first, so profiles get their profile groups when they are added
+        for (NotificationGroup group : mStore.readGroups(mContext)) {
+            addNotificationGroupInternal(group);
+        }
+        for (Profile profile : mStore.readProfiles(mContext)) {
+            addProfileInternal(profile);
+        }
+        if (mProfiles.isEmpty()) {
+            throw new IOException("No profiles in " + PROFILE_DIR);
+        }
+
+        UUID active = null;
+        try {
+            active = mStore.readActive();
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read the active profile", e);
+        }
+        final boolean restored = active != null && setActiveProfileInternal(active, false);
+        // Nothing changed by loading, except what the profiles mark dirty themselves
+        clearPending();
+        if (!restored) {
+            setActiveProfileInternal(mProfiles.values().iterator().next(), false);
+        }
+
+        // Records that were skipped or loaded under another UUID
+        for (UUID uuid : mStore.listProfiles()) {
+            if (!mProfiles.containsKey(uuid)) {
+                markProfileRemoved(uuid);
+            }
+        }
+        for (UUID uuid : mStore.listGroups()) {
+            if (!mGroups.containsKey(uuid)) {
+                markGroupRemoved(uuid);
+            }
+        }
+
+        // The store was written, but profiles.xml wasn't exported before shutting down
+        if (mStore.lastModified() > PROFILE_FILE.lastModified()) {
+            synchronized (mPendingLock) {
+                mPendingExport = true;
+            }
+            schedulePersist();
+        }
     }
 
     private void loadXml(XmlPullParser xpp, Context context) throws
@@ -725,7 +1191,7 @@ public class ProfileManagerService extends CMSystemService {
                 setActiveProfileInternal(mProfiles.values().iterator().next(), false);
             }
             // This is a hint that we probably just upgraded the XML file. Save changes.
-            mDirty = true;
+            markAllDirty();
         }
     }
 
@@ -734,25 +1200,86 @@ public class ProfileManagerService extends CMSystemService {
                 org.cyanogenmod.platform.internal.R.xml.profile_default);
         try {
             loadXml(xml, mContext);
-            mDirty = true;
-            persistIfDirty();
+            markAllDirty();
         } finally {
             xml.close();
         }
     }
 
     private boolean setActiveProfileInternal(UUID profileUuid, boolean doInit) {
-        if (!mProfiles.containsKey(profileUuid)) {
+        final Profile profile;
+        synchronized (mLock) {
+            profile = mProfiles.get(profileUuid);
+        }
+        if (profile == null) {
             Log.e(TAG, "Cannot set active profile to: "
                     + profileUuid.toString() + " - does not exist.");
             return false;
         }
 
         if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(UUID, boolean) found UUID in mProfiles.");
-        setActiveProfileInternal(mProfiles.get(profileUuid), doInit);
+        setActiveProfileInternal(profile, doInit);
         return true;
     }
 
+    /**
+     * Runs the connection overrides of every profile applied, with one thread per radio, so
+     * a radio is never toggled by two profiles at once, even if an earlier profile is still
+     * toggling it after doSelect stopped waiting.
+     */
+    private final Profile.ConnectionExecutor mConnectionExecutor =
+            new Profile.ConnectionExecutor() {
+        // Radio -> its executor. Guarded by itself.
+        private final SparseArray<ThreadPoolExecutor> mExecutors =
+                new SparseArray<ThreadPoolExecutor>();
+
+        @Override
+        public void execute(final int radio, Runnable task) {
+            ThreadPoolExecutor executor;
+            synchronized (mExecutors) {
+                executor = mExecutors.get(radio);
+                if (executor == null) {
+                    executor = new ThreadPoolExecutor(1, 1, CONNECTION_KEEP_ALIVE_S,
+                            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, TAG + " connection " + radio);
+                        }
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    mExecutors.put(radio, executor);
+                }
+            }
+            executor.execute(task);
+        }
+    };
+
+    /**
+     * Applies the overrides of a profile, recording how long each step took.
+     */
+    /* package */ void applyProfile(Profile profile, IKeyguardService keyguardService) {
+        final ArrayMap<String, Long> stepTimesMs = new ArrayMap<String, Long>();
+        profile.doSelect(mContext, keyguardService, stepTimesMs, mConnectionExecutor);
+        synchronized (mApplyLock) {
+            mLastApplied = profile;
+            mLastAppliedTime = System.currentTimeMillis();
+            mLastApplyStepTimesMs = stepTimesMs;
+        }
+    }
+
+    private boolean isEnabledInternal() {
+        long token = Binder.clearCallingIdentity();
+        try {
+            return CMSettings.System.getIntForUser(mContext.getContentResolver(),
+                    CMSettings.System.SYSTEM_PROFILES_ENABLED,
+                    ProfileManager.PROFILES_STATE_ENABLED,
+                    UserHandle.USER_CURRENT) == ProfileManager.PROFILES_STATE_ENABLED;
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
     /* package */ Profile getActiveProfileInternal() {
         return mActiveProfile;
     }
@@ -771,14 +1298,17 @@ public class ProfileManagerService extends CMSystemService {
         Log.d(TAG, "Set active profile to: " + newActiveProfile.getUuid().toString()
                 + " - " + newActiveProfile.getName());
 
-        Profile lastProfile = mActiveProfile;
-        mActiveProfile = newActiveProfile;
-        mDirty = true;
+        final Profile lastProfile;
+        synchronized (mLock) {
+            lastProfile = mActiveProfile;
+            mActiveProfile = newActiveProfile;
+            markActiveDirty();
+        }
 
         if (doInit) {
             if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(Profile, boolean) - Running init");
             // Call profile's "doSelect"
-            mActiveProfile.doSelect(mContext, mKeyguardService);
+            applyProfile(newActiveProfile, mKeyguardService);
 
             // Notify other applications of newly selected profile.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
@@ -792,7 +1322,6 @@ public class ProfileManagerService extends CMSystemService {
                     lastProfile.getUuid().toString());
 
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
-            persistIfDirty();
         } else if (lastProfile != mActiveProfile && ActivityManagerNative.isSystemReady()) {
             // Something definitely changed: notify.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_UPDATED);
@@ -805,13 +1334,69 @@ public class ProfileManagerService extends CMSystemService {
     }
 
     private void addNotificationGroupInternal(NotificationGroup group) {
-        if (mGroups.put(group.getUuid(), group) == null) {
-            // If the above is true, then the ProfileGroup shouldn't exist in
-            // the profile. Ensure it is added.
-            for (Profile profile : mProfiles.values()) {
-                ensureGroupInProfile(profile, group, false);
+        synchronized (mLock) {
+            final NotificationGroup old = mGroups.put(group.getUuid(), group);
+            indexGroupPackages(group.getUuid(), group);
+            if (old == null) {
+                // If the above is true, then the ProfileGroup shouldn't exist in
+                // the profile. Ensure it is added.
+                for (Profile profile : mProfiles.values()) {
+                    ensureGroupInProfile(profile, group, false);
+                }
+            }
+            markGroupDirty(group.getUuid());
+        }
+    }
+
+    /**
+     * Updates the package index for a group that was added, changed or removed. Callers must
+     * hold mLock.
+     * @param uuid The UUID of the group.
+     * @param group The current version of the group, or null if it was removed.
+     */
+    private void indexGroupPackages(UUID uuid, NotificationGroup group) {
+        // Drop the packages of the previous version
+        final ArraySet<String> dropped = new ArraySet<String>();
+        final Iterator<Map.Entry<String, NotificationGroup>> it =
+                mGroupsByPackage.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, NotificationGroup> entry = it.next();
+            if (uuid.equals(entry.getValue().getUuid())) {
+                dropped.add(entry.getKey());
+                it.remove();
             }
         }
-        mDirty = true;
+
+        if (group != null) {
+            for (String pkg : group.getPackages()) {
+                if (!mGroupsByPackage.containsKey(pkg)) {
+                    mGroupsByPackage.put(pkg, group);
+                }
+            }
+        }
+
+        // A package may be in more than one group; hand the dropped ones to another holder
+        for (String pkg : dropped) {
+            if (mGroupsByPackage.containsKey(pkg)) {
+                continue;
+            }
+            for (NotificationGroup other : mGroups.values()) {
+                if (other.hasPackage(pkg)) {
+                    mGroupsByPackage.put(pkg, other);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells registered listeners that profiles, groups or the active profile changed. Changes
+     * made before the listeners are called share a single callback.
+     */
+    private void notifyChanged() {
+        mGeneration.incrementAndGet();
+        if (!mHandler.hasMessages(MSG_NOTIFY_CHANGED)) {
+            mHandler.sendEmptyMessage(MSG_NOTIFY_CHANGED);
+        }
     }
 }
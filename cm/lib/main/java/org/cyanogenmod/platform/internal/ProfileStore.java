@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016 CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.app.NotificationGroup;
+import android.content.Context;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import cyanogenmod.app.Profile;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import libcore.io.IoUtils;
+
+/**
+ * Stores every profile and notification group in its own file, so a change only rewrites the
+ * records it touched. Each record holds the same XML element as the single profiles file, and
+ * is written atomically.
+ *
+ * Not thread-safe; callers serialize access.
+ *
+ * @hide
+ */
+/* package */ class ProfileStore {
+    private static final String TAG = "ProfileStore";
+
+    private static final String PROFILE_SUFFIX = ".profile";
+    private static final String GROUP_SUFFIX = ".group";
+    private static final String ACTIVE_NAME = "active";
+    // Left behind by AtomicFile while a write is in progress
+    private static final String BACKUP_SUFFIX = ".bak";
+
+    private final File mDir;
+
+    /* package */ ProfileStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @return Whether the store was written before, so it holds the current state.
+     */
+    /* package */ boolean exists() {
+        return new File(mDir, ACTIVE_NAME).exists()
+                || new File(mDir, ACTIVE_NAME + BACKUP_SUFFIX).exists();
+    }
+
+    /**
+     * @return When a record was last written, in milliseconds since the epoch, or 0 if the
+     *         store is empty.
+     */
+    /* package */ long lastModified() {
+        final File[] files = mDir.listFiles();
+        long lastModified = 0;
+        if (files != null) {
+            for (File file : files) {
+                lastModified = Math.max(lastModified, file.lastModified());
+            }
+        }
+        return lastModified;
+    }
+
+    /* package */ UUID readActive() throws IOException {
+        final byte[] data = new AtomicFile(new File(mDir, ACTIVE_NAME)).readFully();
+        try {
+            return UUID.fromString(new String(data, StandardCharsets.UTF_8).trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid active profile record", e);
+        }
+    }
+
+    /* package */ void writeActive(UUID uuid) throws IOException {
+        write(new File(mDir, ACTIVE_NAME), uuid.toString());
+    }
+
+    /**
+     * Reads every profile record. Records that can't be parsed are skipped.
+     */
+    /* package */ List<Profile> readProfiles(Context context) {
+        final ArrayList<Profile> profiles = new ArrayList<Profile>();
+        for (UUID uuid : list(PROFILE_SUFFIX)) {
+            final File file = getFile(uuid, PROFILE_SUFFIX);
+            FileInputStream fis = null;
+            try {
+                fis = new AtomicFile(file).openRead();
+                profiles.add(Profile.fromXml(newParser(fis, "profile"), context));
+            } catch (XmlPullParserException e) {
+                Log.e(TAG, "Skipping unreadable profile record " + file, e);
+            } catch (IOException e) {
+                Log.e(TAG, "Skipping unreadable profile record " + file, e);
+            } finally {
+                IoUtils.closeQuietly(fis);
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Reads every notification group record. Records that can't be parsed are skipped.
+     */
+    /* package */ List<NotificationGroup> readGroups(Context context) {
+        final ArrayList<NotificationGroup> groups = new ArrayList<NotificationGroup>();
+        for (UUID uuid : list(GROUP_SUFFIX)) {
+            final File file = getFile(uuid, GROUP_SUFFIX);
+            FileInputStream fis = null;
+            try {
+                fis = new AtomicFile(file).openRead();
+                groups.add(NotificationGroup.fromXml(newParser(fis, "notificationGroup"),
+                        context));
+            } catch (XmlPullParserException e) {
+                Log.e(TAG, "Skipping unreadable notification group record " + file, e);
+            } catch (IOException e) {
+                Log.e(TAG, "Skipping unreadable notification group record " + file, e);
+            } finally {
+                IoUtils.closeQuietly(fis);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Writes a profile record, as serialized by {@link Profile#getXmlString}. Taking the XML
+     * rather than the profile lets callers serialize it while holding their own lock.
+     */
+    /* package */ void writeProfile(UUID uuid, String xml) throws IOException {
+        write(getFile(uuid, PROFILE_SUFFIX), xml);
+    }
+
+    /**
+     * Writes a notification group record, as serialized by
+     * {@link NotificationGroup#getXmlString}.
+     */
+    /* package */ void writeGroup(UUID uuid, String xml) throws IOException {
+        write(getFile(uuid, GROUP_SUFFIX), xml);
+    }
+
+    /* package */ void deleteProfile(UUID uuid) {
+        new AtomicFile(getFile(uuid, PROFILE_SUFFIX)).delete();
+    }
+
+    /* package */ void deleteGroup(UUID uuid) {
+        new AtomicFile(getFile(uuid, GROUP_SUFFIX)).delete();
+    }
+
+    /**
+     * @return The UUIDs of all stored profiles.
+     */
+    /* package */ Set<UUID> listProfiles() {
+        return list(PROFILE_SUFFIX);
+    }
+
+    /**
+     * @return The UUIDs of all stored notification groups.
+     */
+    /* package */ Set<UUID> listGroups() {
+        return list(GROUP_SUFFIX);
+    }
+
+    private Set<UUID> list(String suffix) {
+        final ArraySet<UUID> uuids = new ArraySet<UUID>();
+        final String[] names = mDir.list();
+        if (names == null) {
+            return uuids;
+        }
+        for (String name : names) {
+            if (name.endsWith(BACKUP_SUFFIX)) {
+                name = name.substring(0, name.length() - BACKUP_SUFFIX.length());
+            }
+            if (!name.endsWith(suffix)) {
+                continue;
+            }
+            try {
+                uuids.add(UUID.fromString(name.substring(0, name.length() - suffix.length())));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring unknown file " + name);
+            }
+        }
+        return uuids;
+    }
+
+    /**
+     * Returns a parser positioned at the start tag of a record.
+     */
+    private static XmlPullParser newParser(FileInputStream fis, String tag)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        xpp.setInput(fis, StandardCharsets.UTF_8.name());
+        int event = xpp.next();
+        while (event != XmlPullParser.START_TAG || !tag.equals(xpp.getName())) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                throw new IOException("No " + tag + " element");
+            }
+            event = xpp.next();
+        }
+        return xpp;
+    }
+
+    private File getFile(UUID uuid, String suffix) {
+        return new File(mDir, uuid.toString() + suffix);
+    }
+
+    private void write(File file, String content) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Can't create " + mDir);
+        }
+        final AtomicFile atomicFile = new AtomicFile(file);
+        final byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            fos.write(data);
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            if (fos != null) {
+                atomicFile.failWrite(fos);
+            }
+            throw e;
+        }
+    }
+}
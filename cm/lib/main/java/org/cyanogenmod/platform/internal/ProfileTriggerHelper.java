@@ -33,7 +33,6 @@ import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
 import cyanogenmod.app.Profile;
-import cyanogenmod.app.Profile.ProfileTrigger;
 import cyanogenmod.app.ProfileManager;
 import cyanogenmod.providers.CMSettings;
 
@@ -137,45 +136,48 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     }
 
     private void checkTriggers(int type, String id, int newState) {
+        final ProfileTriggerIndex.Entry[] entries = mManagerService.getTriggerIndex().get(type, id);
+        if (entries == null) {
+            // No profile cares about this event
+            return;
+        }
+
         final Profile activeProfile = mManagerService.getActiveProfileInternal();
         final UUID currentProfileUuid = activeProfile.getUuid();
 
         boolean newProfileSelected = false;
-        for (Profile p : mManagerService.getProfileList()) {
-            final int profileTriggerState = p.getTriggerState(type, id);
-            if (newState != profileTriggerState) {
-                    continue;
+        ProfileTriggerIndex.Entry activeEntry = null;
+        for (ProfileTriggerIndex.Entry entry : entries) {
+            final boolean isActive = currentProfileUuid.equals(entry.profile.getUuid());
+            if (isActive) {
+                activeEntry = entry;
+            }
+            if (newState != entry.state) {
+                continue;
             }
 
-            if (!currentProfileUuid.equals(p.getUuid())) {
-                mManagerService.setActiveProfileInternal(p, true);
+            if (!isActive) {
+                mManagerService.setActiveProfileInternal(entry.profile, true);
                 newProfileSelected = true;
             }
         }
 
-        if (!newProfileSelected) {
-            //Does the active profile actually cares about this event?
-            for (ProfileTrigger trigger : activeProfile.getTriggersFromType(type)) {
-                final String triggerID = trigger.getId();
-                if (triggerID.equals(id)) {
-                    Intent intent
-                            = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
-                    mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
-
-                    final int triggerState = trigger.getState();
-                    if ((newState == Profile.TriggerState.ON_CONNECT
-                            && triggerState == Profile.TriggerState.ON_CONNECT) ||
-                            (newState == Profile.TriggerState.ON_DISCONNECT
-                            && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
-                        activeProfile.doSelect(mContext, null);
-                    }
-                    break;
-                }
+        //Does the active profile actually cares about this event?
+        if (!newProfileSelected && activeEntry != null) {
+            Intent intent
+                    = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
+            mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+
+            final int triggerState = activeEntry.state;
+            if ((newState == Profile.TriggerState.ON_CONNECT
+                    && triggerState == Profile.TriggerState.ON_CONNECT) ||
+                    (newState == Profile.TriggerState.ON_DISCONNECT
+                    && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
+                mManagerService.applyProfile(activeProfile, null);
             }
-
         }
     }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016 CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import cyanogenmod.app.Profile;
+import cyanogenmod.app.Profile.ProfileTrigger;
+
+import java.util.UUID;
+
+/**
+ * Maps trigger type and id to the profiles that have a trigger for it, in any state, so a
+ * WiFi or Bluetooth event finds its profiles without scanning all of them.
+ *
+ * Lookups return arrays that are replaced rather than changed, so callers may keep using
+ * them while profiles are added or removed.
+ *
+ * @hide
+ */
+/* package */ class ProfileTriggerIndex {
+    private static final int[] TRIGGER_TYPES = new int[] {
+            Profile.TriggerType.WIFI, Profile.TriggerType.BLUETOOTH };
+
+    /**
+     * A trigger of one profile, with the state it fires on, which is
+     * {@link Profile.TriggerState#DISABLED} if it never does.
+     */
+    /* package */ static final class Entry {
+        /* package */ final Profile profile;
+        /* package */ final int state;
+
+        private Entry(Profile profile, int state) {
+            this.profile = profile;
+            this.state = state;
+        }
+    }
+
+    // Trigger type -> trigger id -> entries. Guarded by 'this'.
+    private final SparseArray<ArrayMap<String, Entry[]>> mEntries =
+            new SparseArray<ArrayMap<String, Entry[]>>();
+
+    /**
+     * Indexes the triggers of a profile, replacing those of an earlier version of it.
+     */
+    /* package */ synchronized void add(Profile profile) {
+        remove(profile.getUuid());
+        for (int type : TRIGGER_TYPES) {
+            // Disabled triggers are indexed too: they never select their profile, but the
+            // active profile still broadcasts their state changes.
+            for (ProfileTrigger trigger : profile.getTriggersFromType(type)) {
+                ArrayMap<String, Entry[]> byId = mEntries.get(type);
+                if (byId == null) {
+                    byId = new ArrayMap<String, Entry[]>();
+                    mEntries.put(type, byId);
+                }
+                final Entry[] old = byId.get(trigger.getId());
+                final int count = old == null ? 0 : old.length;
+                final Entry[] entries = new Entry[count + 1];
+                if (old != null) {
+                    System.arraycopy(old, 0, entries, 0, count);
+                }
+                entries[count] = new Entry(profile, trigger.getState());
+                byId.put(trigger.getId(), entries);
+            }
+        }
+    }
+
+    /**
+     * Drops the triggers of a profile.
+     */
+    /* package */ synchronized void remove(UUID uuid) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            final ArrayMap<String, Entry[]> byId = mEntries.valueAt(i);
+            for (int j = byId.size() - 1; j >= 0; j--) {
+                final Entry[] old = byId.valueAt(j);
+                int kept = 0;
+                for (Entry entry : old) {
+                    if (!uuid.equals(entry.profile.getUuid())) {
+                        kept++;
+                    }
+                }
+                if (kept == old.length) {
+                    continue;
+                }
+                if (kept == 0) {
+                    byId.removeAt(j);
+                    continue;
+                }
+                final Entry[] entries = new Entry[kept];
+                kept = 0;
+                for (Entry entry : old) {
+                    if (!uuid.equals(entry.profile.getUuid())) {
+                        entries[kept++] = entry;
+                    }
+                }
+                byId.setValueAt(j, entries);
+            }
+        }
+    }
+
+    /* package */ synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * @param type The {@link Profile.TriggerType} of the event.
+     * @param id The trigger id of the event.
+     * @return The triggers for the event, at most one per profile, or null if there are none.
+     *     Must not be changed.
+     */
+    /* package */ synchronized Entry[] get(int type, String id) {
+        final ArrayMap<String, Entry[]> byId = mEntries.get(type);
+        return byId == null || id == null ? null : byId.get(id);
+    }
+}
@@ -19,20 +19,16 @@ package org.cyanogenmod.cmsettings;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
-import android.content.res.Configuration;
-import android.content.res.Resources;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 import android.os.Environment;
-import android.os.SystemProperties;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.DisplayMetrics;
+import android.util.ArrayMap;
 import android.util.Log;
 import cyanogenmod.providers.CMSettings;
 
@@ -67,11 +63,14 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
 
     private static final String DROP_INDEX_SQL_FORMAT = "DROP INDEX IF EXISTS %sIndex%d;";
 
-    private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
+    // Statements cached per connection. Room for the name lookups and upserts of every table
+    // with a few projections each, next to the whole-table queries.
+    private static final int SQL_CACHE_SIZE = 50;
 
     private Context mContext;
     private int mUserHandle;
     private String mPublicSrcDir;
+    private volatile String mDefaultsTiming;
 
     /**
      * Gets the appropriate database path for a specific user
@@ -100,6 +99,10 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
         super(context, dbNameForUser(userId), null, DATABASE_VERSION);
         mContext = context;
         mUserHandle = userId;
+        // Lets readers use their own connections from the pool while a writer holds a
+        // transaction on the primary connection. Every connection then runs with the
+        // platform's WAL sync mode, which can't corrupt the database on power loss.
+        setWriteAheadLoggingEnabled(true);
 
         try {
             String packageName = mContext.getPackageName();
@@ -110,6 +113,16 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
         }
     }
 
+    /**
+     * Configures the database connections: the statement cache keeps the {@code name = ?}
+     * lookups and upserts prepared.
+     * @param db The database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+    }
+
     /**
      * Creates System, Secure, and Global tables in the specified {@link SQLiteDatabase} and loads
      * default values into the created tables.
@@ -327,173 +340,70 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
     }
 
     /**
-     * Loads default values for specific settings into the database.
+     * Loads default values for specific settings into the database, in the transaction of the
+     * caller. The values come from the {@link DefaultSettings} table.
      * @param db The {@link SQLiteDatabase} to insert into.
      */
     private void loadSettings(SQLiteDatabase db) {
-        loadSystemSettings(db);
-        loadSecureSettings(db);
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final DefaultSettings defaults = DefaultSettings.load(mContext, mPublicSrcDir);
+        final long resolvedNs = SystemClock.elapsedRealtimeNanos();
+
+        int rows = loadDefaults(db, CMTableNames.TABLE_SYSTEM, defaults);
+        rows += loadDefaults(db, CMTableNames.TABLE_SECURE, defaults);
         // The global table only exists for the 'owner' user
         if (mUserHandle == UserHandle.USER_OWNER) {
-            loadGlobalSettings(db);
+            rows += loadDefaults(db, CMTableNames.TABLE_GLOBAL, defaults);
         }
-    }
 
-    private void loadSecureSettings(SQLiteDatabase db) {
+        // Depends on the state of the device, so it is not part of the defaults table
         SQLiteStatement stmt = null;
         try {
             stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
                     + " VALUES(?,?);");
-            // Secure
-            loadBooleanSetting(stmt, CMSettings.Secure.ADVANCED_MODE,
-                    R.bool.def_advanced_mode);
-
-            loadRegionLockedStringSetting(stmt,
-                    CMSettings.Secure.DEFAULT_THEME_COMPONENTS, R.string.def_theme_components);
-
-            loadRegionLockedStringSetting(stmt,
-                    CMSettings.Secure.DEFAULT_THEME_PACKAGE, R.string.def_theme_package);
-
-            loadIntegerSetting(stmt, CMSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
-                    R.integer.def_force_show_navbar);
-
-            loadStringSetting(stmt, CMSettings.Secure.QS_TILES,
-                    org.cyanogenmod.platform.internal.
-                            R.string.config_defaultQuickSettingsTiles);
-
-            loadBooleanSetting(stmt, CMSettings.Secure.QS_USE_MAIN_TILES,
-                    R.bool.def_sysui_qs_main_tiles);
-
-            loadBooleanSetting(stmt, CMSettings.Secure.STATS_COLLECTION,
-                    R.bool.def_stats_collection);
-
-            loadBooleanSetting(stmt, CMSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
-                    R.bool.def_lockscreen_visualizer);
-
-            loadStringSetting(stmt,
-                    CMSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
-                    R.string.def_protected_component_managers);
-
-            loadStringSetting(stmt,
-                    CMSettings.Secure.ENABLED_EVENT_LIVE_LOCKS_KEY,
-                    R.string.def_enabled_event_lls_components);
-
             final String provisionedFlag = Settings.Global.getString(mContext.getContentResolver(),
                     Settings.Global.DEVICE_PROVISIONED);
             loadSetting(stmt, CMSettings.Secure.CM_SETUP_WIZARD_COMPLETED, provisionedFlag);
+            rows++;
         } finally {
             if (stmt != null) stmt.close();
         }
-    }
-
-    private void loadSystemSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
-                    + " VALUES(?,?);");
-            // System
-            loadIntegerSetting(stmt, CMSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
-                    R.integer.def_qs_quick_pulldown);
-
-            loadIntegerSetting(stmt, CMSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_notification_brightness_level);
-
-            loadBooleanSetting(stmt, CMSettings.System.NOTIFICATION_LIGHT_MULTIPLE_LEDS_ENABLE,
-                    R.bool.def_notification_multiple_leds);
 
-            loadBooleanSetting(stmt, CMSettings.System.SYSTEM_PROFILES_ENABLED,
-                    R.bool.def_profiles_enabled);
-
-            loadIntegerSetting(stmt, CMSettings.System.ENABLE_FORWARD_LOOKUP,
-                    R.integer.def_forward_lookup);
-
-            loadIntegerSetting(stmt, CMSettings.System.ENABLE_PEOPLE_LOOKUP,
-                    R.integer.def_people_lookup);
-
-            loadIntegerSetting(stmt, CMSettings.System.ENABLE_REVERSE_LOOKUP,
-                    R.integer.def_reverse_lookup);
-
-            loadBooleanSetting(stmt, CMSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
-                    R.bool.def_notification_pulse_custom_enable);
-
-            loadBooleanSetting(stmt, CMSettings.System.SWAP_VOLUME_KEYS_ON_ROTATION,
-                    R.bool.def_swap_volume_keys_on_rotation);
-
-            loadIntegerSetting(stmt, CMSettings.System.STATUS_BAR_BATTERY_STYLE,
-                    R.integer.def_battery_style);
-
-            if (mContext.getResources().getBoolean(R.bool.def_notification_pulse_custom_enable)) {
-                loadStringSetting(stmt, CMSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        R.string.def_notification_pulse_custom_value);
-            }
-        } finally {
-            if (stmt != null) stmt.close();
-        }
+        final long endNs = SystemClock.elapsedRealtimeNanos();
+        mDefaultsTiming = rows + " default rows from " + defaults.getSource() + " in "
+                + (endNs - startNs) / 1000 + "us, resolve " + (resolvedNs - startNs) / 1000
+                + "us, insert " + (endNs - resolvedNs) / 1000 + "us";
+        if (LOCAL_LOGV) Log.d(TAG, "Loaded " + mDefaultsTiming);
     }
 
-    private void loadGlobalSettings(SQLiteDatabase db) {
+    /**
+     * Loads the default values of a table with a single statement. Existing values are kept.
+     * @param db The {@link SQLiteDatabase} to insert into.
+     * @param tableName The name of the table.
+     * @param defaults The default values.
+     * @return The number of default values.
+     */
+    private int loadDefaults(SQLiteDatabase db, String tableName, DefaultSettings defaults) {
+        final ArrayMap<String, String> values = defaults.getValues(tableName);
         SQLiteStatement stmt = null;
         try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
+            stmt = db.compileStatement("INSERT OR IGNORE INTO " + tableName + "(name,value)"
                     + " VALUES(?,?);");
-            // Global
-            loadBooleanSetting(stmt,
-                    CMSettings.Global.POWER_NOTIFICATIONS_ENABLED,
-                    R.bool.def_power_notifications_enabled);
-
-            loadBooleanSetting(stmt,
-                    CMSettings.Global.POWER_NOTIFICATIONS_VIBRATE,
-                    R.bool.def_power_notifications_vibrate);
-
-            loadStringSetting(stmt,
-                    CMSettings.Global.POWER_NOTIFICATIONS_RINGTONE,
-                    R.string.def_power_notifications_ringtone);
-
-            loadIntegerSetting(stmt, CMSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                    R.integer.def_temperature_unit);
+            for (int i = 0; i < values.size(); i++) {
+                loadSetting(stmt, values.keyAt(i), values.valueAt(i));
+            }
         } finally {
             if (stmt != null) stmt.close();
         }
+        return values.size();
     }
 
     /**
-     * Loads a region locked string setting into a database table. If the resource for the specific
-     * mcc is not found, the setting is loaded from the default resources.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the string resource.
+     * @return How long loading the default values took when the database was created or
+     *     upgraded by this helper, or null if it wasn't.
      */
-    private void loadRegionLockedStringSetting(SQLiteStatement stmt, String name, int resId) {
-        String mcc = SystemProperties.get(MCC_PROP_NAME);
-        Resources customResources = null;
-
-        if (!TextUtils.isEmpty(mcc)) {
-            Configuration tempConfiguration = new Configuration();
-            boolean useTempConfig = false;
-
-            try {
-                tempConfiguration.mcc = Integer.parseInt(mcc);
-                useTempConfig = true;
-            } catch (NumberFormatException e) {
-                // not able to parse mcc, catch exception and exit out of this logic
-                e.printStackTrace();
-            }
-
-            if (useTempConfig) {
-                AssetManager assetManager = new AssetManager();
-
-                if (!TextUtils.isEmpty(mPublicSrcDir)) {
-                    assetManager.addAssetPath(mPublicSrcDir);
-                }
-
-                customResources = new Resources(assetManager, new DisplayMetrics(),
-                        tempConfiguration);
-            }
-        }
-
-        String value = customResources == null ? mContext.getResources().getString(resId)
-                : customResources.getString(resId);
-        loadSetting(stmt, name, value);
+    String getDefaultsTiming() {
+        return mDefaultsTiming;
     }
 
     /**
@@ -507,18 +417,6 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
         loadSetting(stmt, name, mContext.getResources().getString(resId));
     }
 
-    /**
-     * Loads a boolean resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the boolean resource.
-     */
-    private void loadBooleanSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
-                mContext.getResources().getBoolean(resId) ? "1" : "0");
-    }
-
     /**
      * Loads an integer resource into a database table. If a conflict occurs, that value is not
      * inserted into the database table.
@@ -32,16 +32,23 @@ import android.content.pm.UserInfo;
 import android.database.AbstractCursor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -50,10 +57,26 @@ import org.cyanogenmod.internal.util.QSUtils;
 
 import cyanogenmod.providers.CMSettings;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The CMSettingsProvider serves as a {@link ContentProvider} for CM specific settings
@@ -64,6 +87,22 @@ public class CMSettingsProvider extends ContentProvider {
 
     private static final boolean USER_CHECK_THROWS = true;
 
+    // Set to true to write puts through call() to the database in batches, after a short
+    // delay, instead of one transaction per put. Versions are bumped and observers notified
+    // at put time either way. Read once, when the provider is created.
+    private static final String WRITE_BEHIND_PROPERTY = "persist.cmsettings.write_behind";
+    private static final long WRITE_BEHIND_DELAY_MS = 100;
+
+    private static final int MSG_WRITE_PENDING = 1;
+    private static final int MSG_REFRESH_SNAPSHOTS = 2;
+
+    // Bounds the threads that open, upgrade and migrate user databases in parallel.
+    private static final int INIT_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // Changes within this delay of the last notification are notified to observers together.
+    private static final long NOTIFY_DELAY_MS = 50;
+
     public static final String PREF_HAS_MIGRATED_CM_SETTINGS = "has_migrated_cm13_settings";
 
     private static final Bundle NULL_SETTING = Bundle.forPair("value", null);
@@ -71,6 +110,19 @@ public class CMSettingsProvider extends ContentProvider {
     // Each defined user has their own settings
     protected final SparseArray<CMDatabaseHelper> mDbHelpers = new SparseArray<CMDatabaseHelper>();
 
+    // Initialization of each user's database and caches, started on first use or ahead of
+    // time on mInitExecutor. Guarded by 'this'.
+    private final SparseArray<FutureTask<CMDatabaseHelper>> mUserInits =
+            new SparseArray<FutureTask<CMDatabaseHelper>>();
+
+    // Per-user migration locks, so different users migrate in parallel. Guarded by 'this'.
+    private final SparseArray<Object> mUserMigrationLocks = new SparseArray<Object>();
+
+    // In-memory copies of each user's tables, keyed by user id and table name. Global is only
+    // kept for the owner. Guarded by 'this'.
+    private final SparseArray<ArrayMap<String, SettingsCache>> mSettingsCaches =
+            new SparseArray<ArrayMap<String, SettingsCache>>();
+
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
     private static final int GLOBAL = 3;
@@ -82,6 +134,14 @@ public class CMSettingsProvider extends ContentProvider {
     private static final String ITEM_MATCHER = "/*";
     private static final String NAME_SELECTION = Settings.NameValueTable.NAME + " = ?";
 
+    private static final String[] PROJECTION_NAME_VALUE = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE };
+
+    private static final String[] TABLE_NAMES = new String[] {
+            CMDatabaseHelper.CMTableNames.TABLE_SYSTEM,
+            CMDatabaseHelper.CMTableNames.TABLE_SECURE,
+            CMDatabaseHelper.CMTableNames.TABLE_GLOBAL };
+
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
@@ -99,26 +159,71 @@ public class CMSettingsProvider extends ContentProvider {
                 ITEM_MATCHER, GLOBAL_ITEM_NAME);
     }
 
+    private final GenerationTracker mGenerationTracker = new GenerationTracker();
+
+    private final ProviderStats mStats = new ProviderStats(TABLE_NAMES);
+
+    // Caches holding values that are not written to the database yet. Guarded by itself.
+    private final ArraySet<SettingsCache> mDirtyCaches = new ArraySet<SettingsCache>();
+    private Handler mWriteHandler;
+    private ChangeDispatcher mChangeDispatcher;
+    // Tables published to clients in shared memory, rewritten on the write handler thread.
+    private SharedSnapshots mSharedSnapshots;
+
     private UserManager mUserManager;
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
 
+    // Serializes migrations of all existing users, without blocking the provider-wide monitor.
+    private final Object mMigrationLock = new Object();
+    private final ExecutorService mInitExecutor = createInitExecutor();
+    // Timings of the migrations run by this process, for dump(). Guarded by itself.
+    private final ArrayList<String> mMigrationTimings = new ArrayList<String>();
+    // Timings of the user initializations run by this process, for dump(). Guarded by itself.
+    private final ArrayList<String> mInitTimings = new ArrayList<String>();
+
+    // Mirrors PREF_HAS_MIGRATED_CM_SETTINGS, so the call() path doesn't read preferences.
+    private volatile boolean mHasMigratedCMSettings;
+    private final AtomicBoolean mPreBootReceiverChecked = new AtomicBoolean(false);
+
+    // Whether puts through call() are written behind, see WRITE_BEHIND_PROPERTY.
+    private boolean mWriteBehind;
+
     @Override
     public boolean onCreate() {
         if (LOCAL_LOGV) Log.d(TAG, "Creating CMSettingsProvider");
 
         mUserManager = UserManager.get(getContext());
 
-        establishDbTracking(UserHandle.USER_OWNER);
+        prepareUser(UserHandle.USER_OWNER);
 
         mUriBuilder = new Uri.Builder();
         mUriBuilder.scheme(ContentResolver.SCHEME_CONTENT);
         mUriBuilder.authority(CMSettings.AUTHORITY);
 
         mSharedPrefs = getContext().getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        mHasMigratedCMSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_CM_SETTINGS, false);
+        mWriteBehind = SystemProperties.getBoolean(WRITE_BEHIND_PROPERTY, false);
+
+        HandlerThread writeThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        writeThread.start();
+        mWriteHandler = new Handler(writeThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_WRITE_PENDING) {
+                    writePendingSettings();
+                } else if (msg.what == MSG_REFRESH_SNAPSHOTS) {
+                    mSharedSnapshots.refresh();
+                }
+            }
+        };
+        mChangeDispatcher = new ChangeDispatcher(writeThread.getLooper(),
+                getContext().getContentResolver(), NOTIFY_DELAY_MS);
+        mSharedSnapshots = new SharedSnapshots(getContext().getFilesDir(), mGenerationTracker);
 
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -130,6 +235,9 @@ public class CMSettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                    // Pending values would be lost with the process
+                    writePendingSettings();
                 }
             }
         }, userFilter);
@@ -137,151 +245,327 @@ public class CMSettingsProvider extends ContentProvider {
         return true;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The process may be killed next, taking the pending values with it
+        writePendingSettings();
+    }
+
     // region Migration Methods
 
     /**
      * Migrates CM settings for all existing users if this has not been run before.
      */
     private void migrateCMSettingsForExistingUsersIfNeeded() {
-        boolean hasMigratedCMSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_CM_SETTINGS,
-                false);
-
-        if (!hasMigratedCMSettings) {
-            long startTime = System.currentTimeMillis();
+        if (mHasMigratedCMSettings) {
+            return;
+        }
+        // Checked here, since the pool threads below run with our own identity
+        checkWritePermissions(CMDatabaseHelper.CMTableNames.TABLE_SECURE);
 
-            for (UserInfo user : mUserManager.getUsers()) {
-                migrateCMSettingsForUser(user.id);
+        synchronized (mMigrationLock) {
+            if (mHasMigratedCMSettings) {
+                return;
+            }
+            long startTime = SystemClock.elapsedRealtime();
+
+            // Each user's database is opened and migrated on its own pool thread
+            final List<UserInfo> users = mUserManager.getUsers();
+            final ArrayList<Future<?>> migrations = new ArrayList<Future<?>>(users.size());
+            for (final UserInfo user : users) {
+                migrations.add(mInitExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        migrateCMSettingsForUser(user.id);
+                    }
+                }));
+            }
+            for (Future<?> migration : migrations) {
+                getUninterruptibly(migration);
             }
 
             mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_CM_SETTINGS, true).commit();
+            mHasMigratedCMSettings = true;
 
             // TODO: Add this as part of a boot message to the UI
-            long timeDiffMillis = System.currentTimeMillis() - startTime;
+            long timeDiffMillis = SystemClock.elapsedRealtime() - startTime;
+            synchronized (mMigrationTimings) {
+                mMigrationTimings.add("all users: " + timeDiffMillis + "ms");
+            }
             if (LOCAL_LOGV) Log.d(TAG, "Migration finished in " + timeDiffMillis + " milliseconds");
         }
     }
 
     /**
-     * Migrates CM settings for a specific user.
+     * Migrates CM settings for a specific user. Every legacy table is read once, the rows are
+     * transformed in memory and all of them are written in a single transaction.
      * @param userId The id of the user to run CM settings migration for.
      */
     private void migrateCMSettingsForUser(int userId) {
+        // Migration writes to the secure tables, like any other secure write
+        checkWritePermissions(CMDatabaseHelper.CMTableNames.TABLE_SECURE);
+
+        final Object userMigrationLock;
         synchronized (this) {
-            if (LOCAL_LOGV) Log.d(TAG, "CM settings will be migrated for user id: " + userId);
+            Object lock = mUserMigrationLocks.get(userId);
+            if (lock == null) {
+                lock = new Object();
+                mUserMigrationLocks.put(userId, lock);
+            }
+            userMigrationLock = lock;
+        }
 
-            // Migrate system settings
-            int rowsMigrated = migrateCMSettingsForTable(userId,
-                    CMDatabaseHelper.CMTableNames.TABLE_SYSTEM, CMSettings.System.LEGACY_SYSTEM_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to CM system table");
+        synchronized (userMigrationLock) {
+            if (LOCAL_LOGV) Log.d(TAG, "CM settings will be migrated for user id: " + userId);
+            final long startNs = SystemClock.elapsedRealtimeNanos();
+
+            final ArrayMap<String, String> systemSettings = readLegacySettings(
+                    Settings.System.CONTENT_URI, userId, CMSettings.System.LEGACY_SYSTEM_SETTINGS);
+            final ArrayMap<String, String> secureSettings = readLegacySettings(
+                    Settings.Secure.CONTENT_URI, userId, CMSettings.Secure.LEGACY_SECURE_SETTINGS);
+            // Global settings are shared by all users, so the owner migrates them
+            final ArrayMap<String, String> globalSettings = userId == UserHandle.USER_OWNER
+                    ? readLegacySettings(Settings.Global.CONTENT_URI, userId,
+                            CMSettings.Global.LEGACY_GLOBAL_SETTINGS)
+                    : new ArrayMap<String, String>();
+            final long readNs = SystemClock.elapsedRealtimeNanos();
+
+            // incorrect migration from YOG4P -> YOG7D failed to remove
+            // Settings.Secure.STATS_COLLECTION after migration; so it may exist in both
+            // providers; so if it exists in the new database, prefer it.
+            if (getOrEstablishCache(userId, CMDatabaseHelper.CMTableNames.TABLE_SECURE)
+                    .get(CMSettings.Secure.STATS_COLLECTION) != null) {
+                secureSettings.remove(CMSettings.Secure.STATS_COLLECTION);
+            }
 
-            // Migrate secure settings
-            rowsMigrated = migrateCMSettingsForTable(userId,
-                    CMDatabaseHelper.CMTableNames.TABLE_SECURE, CMSettings.Secure.LEGACY_SECURE_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to CM secure table");
+            final String qsTiles = secureSettings.get(CMSettings.Secure.QS_TILES);
+            if (qsTiles != null) {
+                secureSettings.put(CMSettings.Secure.QS_TILES, upgradeQsTiles(qsTiles,
+                        "1".equals(secureSettings.get(CMSettings.Secure.QS_USE_MAIN_TILES))));
+            }
 
-            // Migrate global settings
-            rowsMigrated = migrateCMSettingsForTable(userId,
-                    CMDatabaseHelper.CMTableNames.TABLE_GLOBAL, CMSettings.Global.LEGACY_GLOBAL_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to CM global table");
+            final int rowsMigrated = writeMigratedSettings(userId, systemSettings,
+                    secureSettings, globalSettings);
+            final long endNs = SystemClock.elapsedRealtimeNanos();
+
+            final String timing = "user " + userId + ": " + rowsMigrated + " rows (system="
+                    + systemSettings.size() + " secure=" + secureSettings.size() + " global="
+                    + globalSettings.size() + ") in " + (endNs - startNs) / 1000000 + "ms, read "
+                    + (readNs - startNs) / 1000000 + "ms, write " + (endNs - readNs) / 1000000
+                    + "ms";
+            synchronized (mMigrationTimings) {
+                mMigrationTimings.add(timing);
+            }
+            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + timing);
         }
     }
 
     /**
-     * Migrates CM settings for a specific table and user id.
-     * @param userId The id of the user to run CM settings migration for.
-     * @param tableName The name of the table to run CM settings migration on.
-     * @param settings An array of keys to migrate from {@link Settings} to {@link CMSettings}
-     * @return Number of rows migrated.
+     * Reads the legacy values of a {@link Settings} table that are migrated to CM settings.
+     * The settings provider only answers whole-table queries for the calling user, so the
+     * table is read with a single query for our own user and filtered here; other users fall
+     * back to reading the keys one by one.
+     * @param uri The content uri of the {@link Settings} table.
+     * @param userId The id of the user to read the values of.
+     * @param keys The keys to migrate.
+     * @return The non-null values of the keys.
      */
-    private int migrateCMSettingsForTable(int userId, String tableName, String[] settings) {
-        ContentResolver contentResolver = getContext().getContentResolver();
-        ContentValues[] contentValues = new ContentValues[settings.length];
-
-        int migrateSettingsCount = 0;
-        for (String settingsKey : settings) {
-            String settingsValue = null;
-
-            if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SYSTEM)) {
-                settingsValue = Settings.System.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-            else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SECURE)) {
-                settingsValue = Settings.Secure.getStringForUser(contentResolver, settingsKey,
-                        userId);
-                if (settingsValue != null && settingsKey.equals(CMSettings.Secure.STATS_COLLECTION)
-                        && CMSettings.Secure.getStringForUser(contentResolver, settingsKey, userId)
-                        != null) {
-                    // incorrect migration from YOG4P -> YOG7D failed to remove
-                    // Settings.Secure.STATS_COLLECTION after migration; so it may exist in both
-                    // providers; so if it exists in the new database, prefer it.
-                    continue;
-                }
+    private ArrayMap<String, String> readLegacySettings(Uri uri, int userId, String[] keys) {
+        final ArrayMap<String, String> values = new ArrayMap<String, String>(keys.length);
+        final ContentResolver contentResolver = getContext().getContentResolver();
+        final boolean isGlobal = Settings.Global.CONTENT_URI.equals(uri);
+
+        if (isGlobal || userId == UserHandle.myUserId()) {
+            final ArraySet<String> keySet = new ArraySet<String>(keys.length);
+            for (String key : keys) {
+                keySet.add(key);
+            }
 
-                // insert dnd, edit tiles for upgrade from 12.1 -> 13.0
-                if (CMSettings.Secure.QS_TILES.equals(settingsKey) && (settingsValue != null
-                        && (!settingsValue.contains(QSConstants.TILE_DND)
-                        || !settingsValue.contains(QSConstants.TILE_EDIT)))) {
-                    if (LOCAL_LOGV) {
-                        Log.d(TAG, "Need to insert DND or Edit tile for upgrade, currentValue: "
-                                + settingsValue);
+            Cursor cursor = null;
+            final long oldId = Binder.clearCallingIdentity();
+            try {
+                cursor = contentResolver.query(uri, PROJECTION_NAME_VALUE, null, null, null);
+                while (cursor != null && cursor.moveToNext()) {
+                    final String key = cursor.getString(0);
+                    final String value = cursor.getString(1);
+                    // Don't trample defaults with null values. This is the only scenario where
+                    // defaults take precedence over migration values.
+                    if (value != null && keySet.contains(key)) {
+                        values.put(key, value);
                     }
+                }
+                if (cursor != null) {
+                    return values;
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                Binder.restoreCallingIdentity(oldId);
+            }
+            Log.w(TAG, "Unable to query " + uri + ", reading legacy settings one by one");
+        }
+
+        for (String key : keys) {
+            final String value;
+            if (isGlobal) {
+                value = Settings.Global.getStringForUser(contentResolver, key, userId);
+            } else if (Settings.Secure.CONTENT_URI.equals(uri)) {
+                value = Settings.Secure.getStringForUser(contentResolver, key, userId);
+            } else {
+                value = Settings.System.getStringForUser(contentResolver, key, userId);
+            }
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
 
-                    final List<String> tiles = Settings.Secure.getDelimitedStringAsList(
-                            contentResolver, settingsKey, ",");
+    /**
+     * Inserts the dnd and edit tiles for upgrades from 12.1 -> 13.0, if they are missing.
+     * @param tiles The legacy value of {@link CMSettings.Secure#QS_TILES}.
+     * @param nineTilesPerPage Whether the legacy quick settings used nine tiles per page.
+     * @return The upgraded value.
+     */
+    private static String upgradeQsTiles(String tiles, boolean nineTilesPerPage) {
+        if (tiles.contains(QSConstants.TILE_DND) && tiles.contains(QSConstants.TILE_EDIT)) {
+            return tiles;
+        }
+        if (LOCAL_LOGV) {
+            Log.d(TAG, "Need to insert DND or Edit tile for upgrade, currentValue: " + tiles);
+        }
 
-                    if (!tiles.contains(QSConstants.TILE_DND)) {
-                        tiles.add(QSConstants.TILE_DND);
-                    }
-                    if (!tiles.contains(QSConstants.TILE_EDIT)) {
-                        // we need to insert edit tile to the last tile on the first page!
-                        // ensure edit tile is present
+        final List<String> tileList = new ArrayList<String>();
+        for (String tile : TextUtils.split(tiles, ",")) {
+            if (!TextUtils.isEmpty(tile)) {
+                tileList.add(tile);
+            }
+        }
 
-                        // use value in old database
-                        boolean nineTilesPerPage = Settings.Secure.getInt(contentResolver,
-                                CMSettings.Secure.QS_USE_MAIN_TILES, 0) == 1;
+        if (!tileList.contains(QSConstants.TILE_DND)) {
+            tileList.add(QSConstants.TILE_DND);
+        }
+        if (!tileList.contains(QSConstants.TILE_EDIT)) {
+            // we need to insert edit tile to the last tile on the first page!
+            // ensure edit tile is present
+            final int TILES_PER_PAGE = nineTilesPerPage ? 9 : 8;
 
-                        final int TILES_PER_PAGE = nineTilesPerPage ? 9 : 8;
+            if (tileList.size() > TILES_PER_PAGE) {
+                tileList.add((TILES_PER_PAGE - 1), QSConstants.TILE_EDIT);
+            } else {
+                tileList.add(QSConstants.TILE_EDIT);
+            }
+        }
+
+        return TextUtils.join(",", tileList);
+    }
+
+    /**
+     * Writes migrated settings of a user in a single transaction and updates the caches.
+     * @param userId The id of the user the settings are migrated for.
+     * @param systemSettings Values for the system table.
+     * @param secureSettings Values for the secure table.
+     * @param globalSettings Values for the global table. Must be empty unless the user is the
+     *     owner, whose database holds the global table.
+     * @return Number of rows migrated.
+     */
+    private int writeMigratedSettings(int userId, ArrayMap<String, String> systemSettings,
+            ArrayMap<String, String> secureSettings, ArrayMap<String, String> globalSettings) {
+        final String[][] names = writeSettings(userId, systemSettings, secureSettings,
+                globalSettings);
+
+        int rowsMigrated = 0;
+        for (int i = 0; i < TABLE_NAMES.length; i++) {
+            if (names[i] != null) {
+                notifyChange(TABLE_NAMES[i], userId, names[i]);
+                rowsMigrated += names[i].length;
+            }
+        }
+        return rowsMigrated;
+    }
 
-                        if (tiles.size() > TILES_PER_PAGE) {
-                            tiles.add((TILES_PER_PAGE - 1), QSConstants.TILE_EDIT);
-                        } else {
-                            tiles.add(QSConstants.TILE_EDIT);
+    /**
+     * Writes settings to the tables of a user in a single transaction and updates the caches.
+     * Pending values of the caches are written and notified about first; callers notify about
+     * the settings themselves.
+     * @param userId The id of the user to write the settings for.
+     * @param systemSettings Values for the system table.
+     * @param secureSettings Values for the secure table.
+     * @param globalSettings Values for the global table. Must be empty unless the user is the
+     *     owner, whose database holds the global table.
+     * @return The names written to each table in the order of {@link #TABLE_NAMES}, or null
+     *     for tables without values.
+     */
+    private String[][] writeSettings(int userId, ArrayMap<String, String> systemSettings,
+            ArrayMap<String, String> secureSettings, ArrayMap<String, String> globalSettings) {
+        final SQLiteDatabase db = getOrEstablishDatabase(userId).getWritableDatabase();
+        final SettingsCache systemCache =
+                getOrEstablishCache(userId, CMDatabaseHelper.CMTableNames.TABLE_SYSTEM);
+        final SettingsCache secureCache =
+                getOrEstablishCache(userId, CMDatabaseHelper.CMTableNames.TABLE_SECURE);
+        final SettingsCache globalCache = globalSettings.isEmpty()
+                ? null : getOrEstablishCache(userId, CMDatabaseHelper.CMTableNames.TABLE_GLOBAL);
+
+        final SettingsCache[] caches = new SettingsCache[] {
+                systemCache, secureCache, globalCache };
+        @SuppressWarnings("unchecked")
+        final ArrayMap<String, String>[] settings = new ArrayMap[] {
+                systemSettings, secureSettings, globalSettings };
+        final String[][] revertedNames = new String[caches.length][];
+
+        // All caches are locked before the transaction starts, like every other writer does,
+        // and always in the same order.
+        synchronized (systemCache) {
+            synchronized (secureCache) {
+                synchronized (globalCache != null ? globalCache : secureCache) {
+                    final long startNs = SystemClock.elapsedRealtimeNanos();
+                    db.beginTransaction();
+                    try {
+                        for (int i = 0; i < caches.length; i++) {
+                            if (caches[i] != null) {
+                                revertedNames[i] = caches[i].writePendingLocked(db);
+                            }
                         }
+                        for (int i = 0; i < caches.length; i++) {
+                            for (int j = 0; j < settings[i].size(); j++) {
+                                caches[i].upsertLocked(db, settings[i].keyAt(j),
+                                        settings[i].valueAt(j));
+                            }
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
                     }
 
-                    settingsValue = TextUtils.join(",", tiles);
+                    for (int i = 0; i < caches.length; i++) {
+                        if (caches[i] == null) {
+                            continue;
+                        }
+                        mStats.recordWrite(caches[i].getTableName(), startNs);
+                        for (int j = 0; j < settings[i].size(); j++) {
+                            caches[i].put(settings[i].keyAt(j), settings[i].valueAt(j));
+                        }
+                    }
                 }
             }
-            else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_GLOBAL)) {
-                settingsValue = Settings.Global.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-
-            if (LOCAL_LOGV) Log.d(TAG, "Table: " + tableName + ", Key: " + settingsKey + ", Value: "
-                    + settingsValue);
+        }
 
-            // Don't trample defaults with null values. This is the only scenario where defaults
-            // take precedence over migration values.
-            if (settingsValue == null) {
-                if (LOCAL_LOGV) Log.d(TAG, "Skipping migrating " + settingsKey
-                        + " because of null value");
+        final String[][] names = new String[caches.length][];
+        for (int i = 0; i < caches.length; i++) {
+            if (caches[i] == null) {
                 continue;
             }
-
-            ContentValues contentValue = new ContentValues();
-            contentValue.put(Settings.NameValueTable.NAME, settingsKey);
-            contentValue.put(Settings.NameValueTable.VALUE, settingsValue);
-            contentValues[migrateSettingsCount++] = contentValue;
-        }
-
-        int rowsInserted = 0;
-        if (contentValues.length > 0) {
-            Uri uri = mUriBuilder.build();
-            uri = uri.buildUpon().appendPath(tableName).build();
-            rowsInserted = bulkInsertForUser(userId, uri, contentValues);
+            notifyPendingReverted(caches[i], revertedNames[i]);
+            if (!settings[i].isEmpty()) {
+                names[i] = new String[settings[i].size()];
+                for (int j = 0; j < names[i].length; j++) {
+                    names[i][j] = settings[i].keyAt(j);
+                }
+            }
         }
-
-        return rowsInserted;
+        return names;
     }
 
     /**
@@ -289,14 +573,33 @@ public class CMSettingsProvider extends ContentProvider {
      * @param userId The id of the user that is removed.
      */
     private void onUserRemoved(int userId) {
+        final ArrayMap<String, SettingsCache> caches;
         synchronized (this) {
             // the db file itself will be deleted automatically, but we need to tear down
             // our helpers and other internal bookkeeping.
 
             mDbHelpers.delete(userId);
+            mUserInits.delete(userId);
+            mUserMigrationLocks.delete(userId);
+            caches = mSettingsCaches.get(userId);
+            mSettingsCaches.delete(userId);
+            mGenerationTracker.onUserRemoved(userId, new String[] {
+                    CMSettings.System.SYS_PROP_CM_SETTING_VERSION,
+                    CMSettings.Secure.SYS_PROP_CM_SETTING_VERSION,
+                    CMSettings.Global.SYS_PROP_CM_SETTING_VERSION });
+            mSharedSnapshots.onUserRemoved(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
+        if (caches != null) {
+            for (int i = 0; i < caches.size(); i++) {
+                final SettingsCache cache = caches.valueAt(i);
+                synchronized (cache) {
+                    cache.closeLocked();
+                }
+            }
+        }
+        scheduleSnapshotRefresh();
     }
 
     // endregion Migration Methods
@@ -307,6 +610,10 @@ public class CMSettingsProvider extends ContentProvider {
     public Bundle call(String method, String request, Bundle args) {
         if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
 
+        if (method == null) {
+            return null;
+        }
+
         int callingUserId = UserHandle.getCallingUserId();
         if (args != null) {
             int reqUser = args.getInt(CMSettings.CALL_METHOD_USER_KEY, callingUserId);
@@ -318,73 +625,153 @@ public class CMSettingsProvider extends ContentProvider {
             }
         }
 
-        boolean hasMigratedCMSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_CM_SETTINGS,
-                false);
-        final ComponentName preBootReceiver = new ComponentName("org.cyanogenmod.cmsettings",
-                "org.cyanogenmod.cmsettings.PreBootReceiver");
-        final PackageManager packageManager = getContext().getPackageManager();
-        if (!hasMigratedCMSettings &&
-                packageManager.getComponentEnabledSetting(preBootReceiver)
-                        == PackageManager.COMPONENT_ENABLED_STATE_DISABLED ) {
-            if (LOCAL_LOGV) {
-                Log.d(TAG, "Reenabling component preboot receiver");
-            }
-            packageManager.setComponentEnabledSetting(preBootReceiver,
-                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
-                    PackageManager.DONT_KILL_APP);
+        if (!mHasMigratedCMSettings) {
+            ensurePreBootReceiverEnabled();
         }
 
-        // Migrate methods
-        if (CMSettings.CALL_METHOD_MIGRATE_SETTINGS.equals(method)) {
-            migrateCMSettingsForExistingUsersIfNeeded();
+        switch (method) {
+            // Get methods
+            case CMSettings.CALL_METHOD_GET_SYSTEM:
+                return lookupSingleValue(callingUserId, CMSettings.System.CONTENT_URI, request);
+            case CMSettings.CALL_METHOD_GET_SECURE:
+                return lookupSingleValue(callingUserId, CMSettings.Secure.CONTENT_URI, request);
+            case CMSettings.CALL_METHOD_GET_GLOBAL:
+                return lookupSingleValue(callingUserId, CMSettings.Global.CONTENT_URI, request);
+
+            // Put methods - new value is in the args bundle under the key named by
+            // the Settings.NameValueTable.VALUE static.
+            case CMSettings.CALL_METHOD_PUT_SYSTEM:
+                // Framework can't do automatic permission checking for calls, so we need
+                // to do it here.
+                enforceWritePermission(cyanogenmod.platform.Manifest.permission.WRITE_SETTINGS);
+                insertForUser(callingUserId, CMSettings.System.CONTENT_URI,
+                        toNameValue(request, args), mWriteBehind);
+                return null;
+            case CMSettings.CALL_METHOD_PUT_SECURE:
+                enforceWritePermission(
+                        cyanogenmod.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                insertForUser(callingUserId, CMSettings.Secure.CONTENT_URI,
+                        toNameValue(request, args), mWriteBehind);
+                return null;
+            case CMSettings.CALL_METHOD_PUT_GLOBAL:
+                enforceWritePermission(
+                        cyanogenmod.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                insertForUser(callingUserId, CMSettings.Global.CONTENT_URI,
+                        toNameValue(request, args), mWriteBehind);
+                return null;
+
+            // Batched put methods - names and new values are in the args bundle under the
+            // keys named by the CMSettings.CALL_METHOD_NAMES_KEY and
+            // CMSettings.CALL_METHOD_VALUES_KEY statics.
+            case CMSettings.CALL_METHOD_PUT_SYSTEM_BATCH:
+                enforceWritePermission(cyanogenmod.platform.Manifest.permission.WRITE_SETTINGS);
+                insertMultipleValues(callingUserId, CMSettings.System.CONTENT_URI,
+                        getNames(args), getValues(args), mWriteBehind);
+                return null;
+            case CMSettings.CALL_METHOD_PUT_SECURE_BATCH:
+                enforceWritePermission(
+                        cyanogenmod.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                insertMultipleValues(callingUserId, CMSettings.Secure.CONTENT_URI,
+                        getNames(args), getValues(args), mWriteBehind);
+                return null;
+            case CMSettings.CALL_METHOD_PUT_GLOBAL_BATCH:
+                enforceWritePermission(
+                        cyanogenmod.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                insertMultipleValues(callingUserId, CMSettings.Global.CONTENT_URI,
+                        getNames(args), getValues(args), mWriteBehind);
+                return null;
+
+            // Generations methods
+            case CMSettings.CALL_METHOD_GENERATIONS_SYSTEM:
+                return lookupGenerations(callingUserId,
+                        CMDatabaseHelper.CMTableNames.TABLE_SYSTEM);
+            case CMSettings.CALL_METHOD_GENERATIONS_SECURE:
+                return lookupGenerations(callingUserId,
+                        CMDatabaseHelper.CMTableNames.TABLE_SECURE);
+            case CMSettings.CALL_METHOD_GENERATIONS_GLOBAL:
+                return lookupGenerations(callingUserId,
+                        CMDatabaseHelper.CMTableNames.TABLE_GLOBAL);
+
+            // Batched get methods - requested names are in the args bundle under the key
+            // named by the CMSettings.CALL_METHOD_NAMES_KEY static.
+            case CMSettings.CALL_METHOD_GET_SYSTEM_BATCH:
+                return lookupMultipleValues(callingUserId, CMSettings.System.CONTENT_URI,
+                        getNames(args));
+            case CMSettings.CALL_METHOD_GET_SECURE_BATCH:
+                return lookupMultipleValues(callingUserId, CMSettings.Secure.CONTENT_URI,
+                        getNames(args));
+            case CMSettings.CALL_METHOD_GET_GLOBAL_BATCH:
+                return lookupMultipleValues(callingUserId, CMSettings.Global.CONTENT_URI,
+                        getNames(args));
+
+            // List methods
+            case CMSettings.CALL_METHOD_LIST_SYSTEM:
+                return lookupAllValues(callingUserId, CMSettings.System.CONTENT_URI);
+            case CMSettings.CALL_METHOD_LIST_SECURE:
+                return lookupAllValues(callingUserId, CMSettings.Secure.CONTENT_URI);
+            case CMSettings.CALL_METHOD_LIST_GLOBAL:
+                return lookupAllValues(callingUserId, CMSettings.Global.CONTENT_URI);
+
+            // Migrate methods
+            case CMSettings.CALL_METHOD_MIGRATE_SETTINGS:
+                migrateCMSettingsForExistingUsersIfNeeded();
+                return null;
+            case CMSettings.CALL_METHOD_MIGRATE_SETTINGS_FOR_USER:
+                migrateCMSettingsForUser(callingUserId);
+                return null;
+
+            // Image methods - the image is in the args bundle or the result under the key
+            // named by the CMSettings.CALL_METHOD_IMAGE_KEY static.
+            case CMSettings.CALL_METHOD_EXPORT_SETTINGS:
+                return exportSettings(callingUserId, args != null
+                        && args.getBoolean(CMSettings.CALL_METHOD_COMPRESS_KEY, false));
+            case CMSettings.CALL_METHOD_IMPORT_SETTINGS:
+                return importSettings(callingUserId, args == null
+                        ? null : args.getByteArray(CMSettings.CALL_METHOD_IMAGE_KEY));
 
-            return null;
-        } else if (CMSettings.CALL_METHOD_MIGRATE_SETTINGS_FOR_USER.equals(method)) {
-            migrateCMSettingsForUser(callingUserId);
-
-            return null;
-        }
-
-        // Get methods
-        if (CMSettings.CALL_METHOD_GET_SYSTEM.equals(method)) {
-            return lookupSingleValue(callingUserId, CMSettings.System.CONTENT_URI, request);
-        }
-        else if (CMSettings.CALL_METHOD_GET_SECURE.equals(method)) {
-            return lookupSingleValue(callingUserId, CMSettings.Secure.CONTENT_URI, request);
-        }
-        else if (CMSettings.CALL_METHOD_GET_GLOBAL.equals(method)) {
-            return lookupSingleValue(callingUserId, CMSettings.Global.CONTENT_URI, request);
+            default:
+                return null;
         }
+    }
 
-        // Put methods - new value is in the args bundle under the key named by
-        // the Settings.NameValueTable.VALUE static.
-        final String newValue = (args == null)
-                ? null : args.getString(Settings.NameValueTable.VALUE);
+    private static ContentValues toNameValue(String name, Bundle args) {
+        final ContentValues values = new ContentValues();
+        values.put(Settings.NameValueTable.NAME, name);
+        values.put(Settings.NameValueTable.VALUE,
+                args == null ? null : args.getString(Settings.NameValueTable.VALUE));
+        return values;
+    }
 
-        // Framework can't do automatic permission checking for calls, so we need
-        // to do it here.
-        if (CMSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
-            enforceWritePermission(cyanogenmod.platform.Manifest.permission.WRITE_SETTINGS);
-        } else {
-            enforceWritePermission(cyanogenmod.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
-        }
+    private static String[] getNames(Bundle args) {
+        return args == null ? null : args.getStringArray(CMSettings.CALL_METHOD_NAMES_KEY);
+    }
 
-        // Put methods
-        final ContentValues values = new ContentValues();
-        values.put(Settings.NameValueTable.NAME, request);
-        values.put(Settings.NameValueTable.VALUE, newValue);
+    private static String[] getValues(Bundle args) {
+        return args == null ? null : args.getStringArray(CMSettings.CALL_METHOD_VALUES_KEY);
+    }
 
-        if (CMSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
-            insertForUser(callingUserId, CMSettings.System.CONTENT_URI, values);
-        }
-        else if (CMSettings.CALL_METHOD_PUT_SECURE.equals(method)) {
-            insertForUser(callingUserId, CMSettings.Secure.CONTENT_URI, values);
-        }
-        else if (CMSettings.CALL_METHOD_PUT_GLOBAL.equals(method)) {
-            insertForUser(callingUserId, CMSettings.Global.CONTENT_URI, values);
+    /**
+     * Makes sure the PreBootReceiver is enabled while migration has not completed, so it can
+     * trigger the migration on the next boot. This costs a PackageManager round-trip, so it is
+     * done at most once per process instead of on every call.
+     */
+    private void ensurePreBootReceiverEnabled() {
+        if (!mPreBootReceiverChecked.compareAndSet(false, true)) {
+            return;
         }
 
-        return null;
+        final ComponentName preBootReceiver = new ComponentName("org.cyanogenmod.cmsettings",
+                "org.cyanogenmod.cmsettings.PreBootReceiver");
+        final PackageManager packageManager = getContext().getPackageManager();
+        if (packageManager.getComponentEnabledSetting(preBootReceiver)
+                == PackageManager.COMPONENT_ENABLED_STATE_DISABLED) {
+            if (LOCAL_LOGV) {
+                Log.d(TAG, "Reenabling component preboot receiver");
+            }
+            packageManager.setComponentEnabledSetting(preBootReceiver,
+                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+                    PackageManager.DONT_KILL_APP);
+        }
     }
 
     private void enforceWritePermission(String permission) {
@@ -404,27 +791,172 @@ public class CMSettingsProvider extends ContentProvider {
      * @return A single value stored in a {@link Bundle}.
      */
     private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
-        try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final String tableName = getTableNameFromUri(uri);
+        final String value = getOrEstablishCache(userId, tableName).get(key);
+        mStats.recordCall(tableName, ProviderStats.OP_GET, startNs);
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+    }
+
+    /**
+     * Looks up several values for a specific user and uri.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param keys The keys to perform the lookup with.
+     * @return A {@link Bundle} mapping every requested key to its value, or to null if the key
+     *     is not present in the table.
+     */
+    private Bundle lookupMultipleValues(int userId, Uri uri, String[] keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("Names cannot be null");
+        }
+
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final String tableName = getTableNameFromUri(uri);
+        final SettingsCache cache = getOrEstablishCache(userId, tableName);
+        final Bundle result = new Bundle();
+        for (String key : keys) {
+            result.putString(key, cache.get(key));
+        }
+        mStats.recordCall(tableName, ProviderStats.OP_GET_BATCH, startNs);
+        return result;
+    }
 
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
+    /**
+     * Looks up every value of a table for a specific user.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @return A {@link Bundle} mapping every key in the table to its value.
+     */
+    private Bundle lookupAllValues(int userId, Uri uri) {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final String tableName = getTableNameFromUri(uri);
+        final Bundle result = new Bundle();
+        getOrEstablishCache(userId, tableName).putAllInto(result);
+        mStats.recordCall(tableName, ProviderStats.OP_LIST, startNs);
+        return result;
+    }
+
+    /**
+     * Looks up the name bucket generations of a table for a specific user.
+     * @param userId The id of the user to perform the lookup for.
+     * @param tableName The table to perform the lookup for.
+     * @return A {@link Bundle} holding the generations and the table version they match.
+     */
+    private Bundle lookupGenerations(int userId, String tableName) {
+        return mGenerationTracker.getGenerations(tableName, getUserIdForTable(tableName, userId),
+                getVersionPropertyForTable(tableName));
+    }
+
+    /**
+     * Exports the tables of a user as a {@link SettingsImage}. Values that are not written to
+     * the database yet are included.
+     * @param userId The id of the user to export the tables of.
+     * @param compress Whether to compress the image.
+     * @return The image stored in a {@link Bundle}.
+     */
+    private Bundle exportSettings(int userId, boolean compress) {
+        final SettingsCache[] caches = new SettingsCache[] {
+                getOrEstablishCache(userId, CMDatabaseHelper.CMTableNames.TABLE_SYSTEM),
+                getOrEstablishCache(userId, CMDatabaseHelper.CMTableNames.TABLE_SECURE),
+                // Global settings are shared by all users, so they are only part of the
+                // owner's image, like with migration.
+                userId == UserHandle.USER_OWNER
+                        ? getOrEstablishCache(userId, CMDatabaseHelper.CMTableNames.TABLE_GLOBAL)
+                        : null };
+
+        final ArrayMap<String, ArrayMap<String, String>> tables =
+                new ArrayMap<String, ArrayMap<String, String>>(caches.length);
+        // Locked in the same order as writers do, so a write spanning tables is either fully
+        // part of the image or not at all.
+        synchronized (caches[0]) {
+            synchronized (caches[1]) {
+                synchronized (caches[2] != null ? caches[2] : caches[1]) {
+                    for (SettingsCache cache : caches) {
+                        if (cache != null) {
+                            final ArrayMap<String, String> rows =
+                                    new ArrayMap<String, String>(cache.size());
+                            cache.putAllInto(rows);
+                            tables.put(cache.getTableName(), rows);
+                        }
+                    }
+                }
             }
-        } catch (SQLiteException e) {
-            Log.w(TAG, "settings lookup error", e);
-            return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+
+        for (int i = 0; i < tables.size(); i++) {
+            mStats.count(tables.keyAt(i), ProviderStats.OP_EXPORT);
+        }
+        final Bundle result = new Bundle();
+        result.putByteArray(CMSettings.CALL_METHOD_IMAGE_KEY,
+                SettingsImage.write(tables, compress));
+        return result;
+    }
+
+    /**
+     * Validates a {@link SettingsImage} and writes it to the tables of a user in a single
+     * transaction. Nothing is written unless every row of the image is valid. Observers are
+     * notified once per table.
+     * @param userId The id of the user to import the tables for.
+     * @param image The image made by {@link #exportSettings}.
+     * @return The number of imported rows stored in a {@link Bundle}.
+     */
+    private Bundle importSettings(int userId, byte[] image) {
+        final ArrayMap<String, ArrayMap<String, String>> tables = SettingsImage.read(image);
+        for (int i = 0; i < tables.size(); i++) {
+            if (getUriForTable(tables.keyAt(i)) == null) {
+                throw new IllegalArgumentException("Unknown table in settings image: "
+                        + tables.keyAt(i));
+            }
+        }
+
+        final ArrayMap<String, String> systemSettings =
+                getRows(tables, CMDatabaseHelper.CMTableNames.TABLE_SYSTEM);
+        final ArrayMap<String, String> secureSettings =
+                getRows(tables, CMDatabaseHelper.CMTableNames.TABLE_SECURE);
+        final ArrayMap<String, String> globalSettings =
+                getRows(tables, CMDatabaseHelper.CMTableNames.TABLE_GLOBAL);
+        if (!globalSettings.isEmpty() && userId != UserHandle.USER_OWNER) {
+            throw new IllegalArgumentException(
+                    "Global settings can only be imported for the owner");
+        }
+
+        if (!systemSettings.isEmpty()) {
+            enforceWritePermission(cyanogenmod.platform.Manifest.permission.WRITE_SETTINGS);
+        }
+        if (!secureSettings.isEmpty() || !globalSettings.isEmpty()) {
+            checkWritePermissions(CMDatabaseHelper.CMTableNames.TABLE_SECURE);
+        }
+
+        for (int i = 0; i < systemSettings.size(); i++) {
+            validateSystemSettingNameValue(systemSettings.keyAt(i), systemSettings.valueAt(i));
+        }
+        for (int i = 0; i < secureSettings.size(); i++) {
+            validateSecureSettingValue(secureSettings.keyAt(i), secureSettings.valueAt(i));
+        }
+
+        final String[][] names = writeSettings(userId, systemSettings, secureSettings,
+                globalSettings);
+
+        int rowsImported = 0;
+        for (int i = 0; i < TABLE_NAMES.length; i++) {
+            if (names[i] != null) {
+                mStats.count(TABLE_NAMES[i], ProviderStats.OP_IMPORT);
+                notifyChange(TABLE_NAMES[i], userId, names[i]);
+                rowsImported += names[i].length;
             }
         }
+        if (LOCAL_LOGV) Log.d(TAG, "Imported " + rowsImported + " row(s) for user " + userId);
 
-        return NULL_SETTING;
+        final Bundle result = new Bundle();
+        result.putInt(CMSettings.CALL_METHOD_ROWS_KEY, rowsImported);
+        return result;
+    }
+
+    private static ArrayMap<String, String> getRows(
+            ArrayMap<String, ArrayMap<String, String>> tables, String tableName) {
+        final ArrayMap<String, String> rows = tables.get(tableName);
+        return rows != null ? rows : new ArrayMap<String, String>();
     }
 
     @Override
@@ -455,11 +987,15 @@ public class CMSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUriMatchCode(code);
 
         CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        // Values put ahead of the database must be written before it is read
+        writePendingSettings(getOrEstablishCache(userId, tableName), dbHelper);
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(tableName);
 
+        mStats.count(tableName, ProviderStats.OP_QUERY);
+        final long startNs = SystemClock.elapsedRealtimeNanos();
         Cursor returnCursor;
         if (isItemUri(code)) {
             // The uri is looking for an element with a specific name
@@ -469,6 +1005,7 @@ public class CMSettingsProvider extends ContentProvider {
             returnCursor = queryBuilder.query(db, projection, selection, selectionArgs, null,
                     null, sortOrder);
         }
+        mStats.recordRead(tableName, startNs);
 
         // the default Cursor interface does not support per-user observation
         try {
@@ -484,6 +1021,38 @@ public class CMSettingsProvider extends ContentProvider {
         return returnCursor;
     }
 
+    /**
+     * Opens the shared memory snapshot of a table of the calling user, which
+     * {@link CMSettings} maps to read settings without calling the provider. The snapshot is
+     * read-only and kept up to date by the provider.
+     * @param uri The content uri of a table.
+     * @param mode Must be "r".
+     * @return A read-only descriptor of the snapshot file.
+     * @throws FileNotFoundException If the uri is not a table or the snapshot can't be written.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        final int code = sUriMatcher.match(uri);
+        if (code != SYSTEM && code != SECURE && code != GLOBAL) {
+            throw new FileNotFoundException("No snapshot for " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Snapshots are read-only: " + uri);
+        }
+
+        final String tableName = getTableNameFromUriMatchCode(code);
+        final SettingsCache cache = getOrEstablishCache(UserHandle.getCallingUserId(), tableName);
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            return mSharedSnapshots.open(cache, getVersionPropertyForTable(tableName));
+        } catch (IOException e) {
+            Log.w(TAG, "Can't publish snapshot of " + uri, e);
+            throw new FileNotFoundException(e.getMessage());
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+
     @Override
     public String getType(Uri uri) {
         int code = sUriMatcher.match(uri);
@@ -524,31 +1093,55 @@ public class CMSettingsProvider extends ContentProvider {
         checkWritePermissions(tableName);
 
         CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        SettingsCache cache = getOrEstablishCache(userId, tableName);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
-                }
+        final String[] names = new String[values.length];
+
+        mStats.count(tableName, ProviderStats.OP_BULK_INSERT);
+        String[] revertedNames;
+        synchronized (cache) {
+            final long startNs = SystemClock.elapsedRealtimeNanos();
+            revertedNames = cache.writePendingLocked(db);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    final ContentValues value = values[i];
+                    if (value == null) {
+                        continue;
+                    }
+                    names[i] = value.getAsString(Settings.NameValueTable.NAME);
 
-                long rowId = db.insert(tableName, null, value);
+                    long rowId = cache.upsertLocked(db, names[i],
+                            value.getAsString(Settings.NameValueTable.VALUE));
 
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
+                    if (rowId >= 0) {
+                        numRowsAffected++;
+                    } else {
+                        numRowsAffected = 0;
+                        break;
+                    }
+                }
+
+                if (numRowsAffected > 0) {
+                    db.setTransactionSuccessful();
                 }
+            } finally {
+                db.endTransaction();
             }
 
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+            mStats.recordWrite(tableName, startNs);
+
+            for (int i = 0; numRowsAffected > 0 && i < values.length; i++) {
+                if (values[i] != null) {
+                    cache.put(names[i], values[i].getAsString(Settings.NameValueTable.VALUE));
+                }
+            }
         }
+        notifyPendingReverted(cache, revertedNames);
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            notifyChange(tableName, userId, names);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -557,7 +1150,63 @@ public class CMSettingsProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        return insertForUser(UserHandle.getCallingUserId(), uri, values, false);
+    }
+
+    /**
+     * Inserts several values for a specific user as one change: the table version is bumped,
+     * and observers are notified, once for all of them.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table to insert into.
+     * @param names The names of the settings to insert.
+     * @param values The values to insert, in the same order as {@code names}.
+     * @param writeBehind Whether the values may be written to the database later. They are
+     *    visible to readers, and observers are notified, at once either way.
+     * @return Number of rows inserted.
+     */
+    private int insertMultipleValues(int userId, Uri uri, String[] names, String[] values,
+            boolean writeBehind) {
+        if (names == null || values == null) {
+            throw new IllegalArgumentException("Names and values cannot be null");
+        }
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("Got " + names.length + " names for "
+                    + values.length + " values");
+        }
+
+        final String tableName = getTableNameFromUri(uri);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null) {
+                throw new IllegalArgumentException("Names cannot contain null");
+            }
+            if (CMDatabaseHelper.CMTableNames.TABLE_SYSTEM.equals(tableName)) {
+                validateSystemSettingNameValue(names[i], values[i]);
+            } else if (CMDatabaseHelper.CMTableNames.TABLE_SECURE.equals(tableName)) {
+                validateSecureSettingValue(names[i], values[i]);
+            }
+        }
+
+        if (!writeBehind) {
+            final ContentValues[] rows = new ContentValues[names.length];
+            for (int i = 0; i < names.length; i++) {
+                rows[i] = new ContentValues();
+                rows[i].put(Settings.NameValueTable.NAME, names[i]);
+                rows[i].put(Settings.NameValueTable.VALUE, values[i]);
+            }
+            return bulkInsertForUser(userId, uri, rows);
+        }
+
+        checkWritePermissions(tableName);
+        mStats.count(tableName, ProviderStats.OP_PUT_BATCH);
+        final SettingsCache cache = getOrEstablishCache(userId, tableName);
+        synchronized (cache) {
+            for (int i = 0; i < names.length; i++) {
+                cache.putPending(names[i], values[i]);
+            }
+        }
+        scheduleWritePending(cache);
+        notifyChange(tableName, userId, names);
+        return names.length;
     }
 
     /**
@@ -566,9 +1215,11 @@ public class CMSettingsProvider extends ContentProvider {
      * @param uri The content:// URI of the insertion request.
      * @param values A sets of column_name/value pairs to add to the database.
      *    This must not be {@code null}.
+     * @param writeBehind Whether the value may be written to the database later. It is
+     *    visible to readers, and observers are notified, at once either way.
      * @return
      */
-    private Uri insertForUser(int userId, Uri uri, ContentValues values) {
+    private Uri insertForUser(int userId, Uri uri, ContentValues values, boolean writeBehind) {
         if (uri == null) {
             throw new IllegalArgumentException("Uri cannot be null");
         }
@@ -591,13 +1242,38 @@ public class CMSettingsProvider extends ContentProvider {
             validateSecureSettingValue(name, value);
         }
 
+        SettingsCache cache = getOrEstablishCache(userId, tableName);
+        if (writeBehind && name != null) {
+            mStats.count(tableName, ProviderStats.OP_PUT);
+            synchronized (cache) {
+                cache.putPending(name, value);
+            }
+            scheduleWritePending(cache);
+            final Uri returnUri = Uri.withAppendedPath(uri, name);
+            // The value is visible at once, so clients must learn about it at once too
+            notifyChange(tableName, userId, new String[] { name });
+            return returnUri;
+        }
+
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        mStats.count(tableName, ProviderStats.OP_INSERT);
+        String[] revertedNames;
+        long rowId;
+        synchronized (cache) {
+            final long startNs = SystemClock.elapsedRealtimeNanos();
+            revertedNames = cache.writePendingLocked(db);
+            rowId = cache.upsertLocked(db, name, value);
+            mStats.recordWrite(tableName, startNs);
+            if (rowId > -1) {
+                cache.put(name, value);
+            }
+        }
+        notifyPendingReverted(cache, revertedNames);
 
         Uri returnUri = null;
         if (rowId > -1) {
             returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
+            notifyChange(tableName, userId, new String[] { name });
             if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
                     tableName);
         }
@@ -623,11 +1299,31 @@ public class CMSettingsProvider extends ContentProvider {
             CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
                     callingUserId));
 
+            SettingsCache cache = getOrEstablishCache(callingUserId, tableName);
+            String[] names = getNamesFromSelection(uri, selection, selectionArgs);
+
             SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            mStats.count(tableName, ProviderStats.OP_DELETE);
+            String[] revertedNames;
+            synchronized (cache) {
+                final long startNs = SystemClock.elapsedRealtimeNanos();
+                revertedNames = cache.writePendingLocked(db);
+                numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                mStats.recordWrite(tableName, startNs);
+                if (numRowsAffected > 0) {
+                    if (names != null) {
+                        for (String name : names) {
+                            cache.remove(name);
+                        }
+                    } else {
+                        cache.reload(db);
+                    }
+                }
+            }
+            notifyPendingReverted(cache, revertedNames);
 
             if (numRowsAffected > 0) {
-                notifyChange(uri, tableName, callingUserId);
+                notifyChange(tableName, callingUserId, names);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
         }
@@ -666,22 +1362,68 @@ public class CMSettingsProvider extends ContentProvider {
         CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
                 callingUserId));
 
+        SettingsCache cache = getOrEstablishCache(callingUserId, tableName);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        mStats.count(tableName, ProviderStats.OP_UPDATE);
+        String[] revertedNames;
+        int numRowsAffected;
+        synchronized (cache) {
+            final long startNs = SystemClock.elapsedRealtimeNanos();
+            revertedNames = cache.writePendingLocked(db);
+            numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+            mStats.recordWrite(tableName, startNs);
+            if (numRowsAffected > 0) {
+                // Updates are rare and may match any rows, so just re-read the table
+                cache.reload(db);
+            }
+        }
+        notifyPendingReverted(cache, revertedNames);
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, callingUserId);
+            notifyChange(tableName, callingUserId,
+                    getNamesFromSelection(uri, selection, selectionArgs));
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
 
         return numRowsAffected;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("CMSettingsProvider:");
+        pw.println("  migrated: " + mHasMigratedCMSettings);
+        synchronized (mMigrationTimings) {
+            for (String timing : mMigrationTimings) {
+                pw.println("  migration " + timing);
+            }
+        }
+        synchronized (mInitTimings) {
+            for (String timing : mInitTimings) {
+                pw.println("  init " + timing);
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < mSettingsCaches.size(); i++) {
+                final ArrayMap<String, SettingsCache> caches = mSettingsCaches.valueAt(i);
+                pw.print("  user " + mSettingsCaches.keyAt(i) + " cached:");
+                for (int j = 0; j < caches.size(); j++) {
+                    pw.print(" " + caches.keyAt(j) + "=" + caches.valueAt(j).size());
+                }
+                pw.println();
+            }
+        }
+        pw.println("  snapshots:");
+        mSharedSnapshots.dump(pw, "    ");
+        pw.println("  stats:");
+        mStats.dump(pw, "    ");
+    }
+
     // endregion Content Provider Methods
 
     /**
      * Tries to get a {@link CMDatabaseHelper} for the specified user and if it does not exist, a
      * new instance of {@link CMDatabaseHelper} is created for the specified user and returned.
+     * Callers for a user that is still being initialized only wait for that user.
      * @param callingUser
      * @return
      */
@@ -694,16 +1436,38 @@ public class CMSettingsProvider extends ContentProvider {
             }
         }
 
+        final FutureTask<CMDatabaseHelper> init;
+        synchronized (this) {
+            final CMDatabaseHelper dbHelper = mDbHelpers.get(callingUser);
+            if (dbHelper != null) {
+                return dbHelper;
+            }
+            init = getOrCreateUserInitLocked(callingUser);
+        }
+
         long oldId = Binder.clearCallingIdentity();
         try {
-            CMDatabaseHelper dbHelper;
-            synchronized (this) {
-                dbHelper = mDbHelpers.get(callingUser);
-            }
-            if (null == dbHelper) {
-                establishDbTracking(callingUser);
+            // Run the initialization right here if no pool thread has started it yet, rather
+            // than waiting for one. This also keeps pool threads from ever waiting on work
+            // that is still queued behind them.
+            init.run();
+            final CMDatabaseHelper dbHelper;
+            try {
+                dbHelper = getUninterruptibly(init);
+            } catch (RuntimeException e) {
+                // Let the next caller try again
                 synchronized (this) {
-                    dbHelper = mDbHelpers.get(callingUser);
+                    if (mUserInits.get(callingUser) == init) {
+                        mUserInits.delete(callingUser);
+                    }
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                // Unless the user was removed in the meantime
+                if (mUserInits.get(callingUser) == init) {
+                    mDbHelpers.put(callingUser, dbHelper);
                 }
             }
             return dbHelper;
@@ -713,33 +1477,274 @@ public class CMSettingsProvider extends ContentProvider {
     }
 
     /**
-     * Check if a {@link CMDatabaseHelper} exists for a user and if it doesn't, a new helper is
-     * created and added to the list of tracked database helpers
+     * Starts initializing the database and caches of a user on the init pool, so they are
+     * ready by the time the user's settings are first accessed.
      * @param userId
      */
-    private void establishDbTracking(int userId) {
-        CMDatabaseHelper dbHelper;
+    private void prepareUser(int userId) {
+        final FutureTask<CMDatabaseHelper> init;
+        synchronized (this) {
+            if (mDbHelpers.get(userId) != null || mUserInits.get(userId) != null) {
+                return;
+            }
+            init = getOrCreateUserInitLocked(userId);
+        }
+        mInitExecutor.execute(init);
+    }
 
+    private FutureTask<CMDatabaseHelper> getOrCreateUserInitLocked(int userId) {
+        FutureTask<CMDatabaseHelper> init = mUserInits.get(userId);
+        if (init == null) {
+            init = new UserInit(userId).task;
+            mUserInits.put(userId, init);
+        }
+        return init;
+    }
+
+    /**
+     * The initialization of a user. Its task identifies it in {@link #mUserInits}, so results
+     * of an initialization that a user removal made stale are not published.
+     */
+    private final class UserInit implements Callable<CMDatabaseHelper> {
+        private final int userId;
+        private final FutureTask<CMDatabaseHelper> task = new FutureTask<CMDatabaseHelper>(this);
+
+        private UserInit(int userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public CMDatabaseHelper call() {
+            return initializeUser(userId, task);
+        }
+    }
+
+    /**
+     * Opens the database of a user, running {@link CMDatabaseHelper#onCreate} or
+     * {@link CMDatabaseHelper#onUpgrade} as needed, and loads the user's caches. Runs without
+     * any of our locks held, so users are initialized independently of each other.
+     * @param userId
+     * @param init The task running this initialization.
+     * @return The database helper of the user.
+     */
+    private CMDatabaseHelper initializeUser(int userId, FutureTask<CMDatabaseHelper> init) {
+        if (LOCAL_LOGV) {
+            Log.i(TAG, "Installing new cm settings db helper for user " + userId);
+        }
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final CMDatabaseHelper dbHelper = new CMDatabaseHelper(getContext(), userId);
+        dbHelper.getWritableDatabase();
+        loadSettingsCaches(userId, dbHelper, init);
+
+        // Only set if the database was created or upgraded, which is when defaults are loaded
+        final String defaultsTiming = dbHelper.getDefaultsTiming();
+        final String timing = "user " + userId + ": "
+                + (SystemClock.elapsedRealtimeNanos() - startNs) / 1000 + "us"
+                + (defaultsTiming != null ? ", " + defaultsTiming : "");
+        synchronized (mInitTimings) {
+            mInitTimings.add(timing);
+        }
+        if (LOCAL_LOGV) Log.i(TAG, "Initialized " + timing);
+        return dbHelper;
+    }
+
+    private static ExecutorService createInitExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(INIT_THREADS, INIT_THREADS,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, TAG + "Init-" + mCount.incrementAndGet());
+                    }
+                });
+        // The pool is only busy around boot and user switches
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Waits for a future, rethrowing whatever it failed with.
+     */
+    private static <T> T getUninterruptibly(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loads the in-memory copies of a user's tables, unless they are loaded already. Like the db
+     * initialization this runs outside the locks; racing threads may both load, but only the
+     * first copy is kept. Writes always go through a kept copy, so none are lost. Copies are
+     * only kept while the initialization or database they were loaded for is current, so a
+     * removed user's caches don't come back.
+     * @param userId
+     * @param dbHelper The database helper of the user.
+     * @param init The initialization loading the caches, or null if dbHelper is published.
+     * @return The kept caches of the user, keyed by table name, or the loaded ones if they
+     *     were not kept.
+     */
+    private ArrayMap<String, SettingsCache> loadSettingsCaches(int userId,
+            CMDatabaseHelper dbHelper, FutureTask<CMDatabaseHelper> init) {
         synchronized (this) {
-            dbHelper = mDbHelpers.get(userId);
-            if (LOCAL_LOGV) {
-                Log.i(TAG, "Checking cm settings db helper for user " + userId);
+            final ArrayMap<String, SettingsCache> caches = mSettingsCaches.get(userId);
+            if (caches != null) {
+                return caches;
             }
-            if (dbHelper == null) {
-                if (LOCAL_LOGV) {
-                    Log.i(TAG, "Installing new cm settings db helper for user " + userId);
+        }
+
+        final SQLiteDatabase db = dbHelper.getReadableDatabase();
+        final ArrayMap<String, SettingsCache> caches = new ArrayMap<String, SettingsCache>();
+        for (String tableName : new String[] { CMDatabaseHelper.CMTableNames.TABLE_SYSTEM,
+                CMDatabaseHelper.CMTableNames.TABLE_SECURE,
+                CMDatabaseHelper.CMTableNames.TABLE_GLOBAL }) {
+            if (getUserIdForTable(tableName, userId) != userId) {
+                continue;
+            }
+            final SettingsCache cache = new SettingsCache(tableName, userId);
+            final long startNs = SystemClock.elapsedRealtimeNanos();
+            cache.reload(db);
+            mStats.recordRead(tableName, startNs);
+            caches.put(tableName, cache);
+        }
+
+        synchronized (this) {
+            final ArrayMap<String, SettingsCache> existing = mSettingsCaches.get(userId);
+            if (existing != null) {
+                return existing;
+            }
+            final boolean current = init != null
+                    ? mUserInits.get(userId) == init : mDbHelpers.get(userId) == dbHelper;
+            if (!current) {
+                // The user was removed in the meantime
+                return caches;
+            }
+            mSettingsCaches.put(userId, caches);
+        }
+        if (LOCAL_LOGV) Log.d(TAG, "Loaded settings caches for user " + userId);
+        return caches;
+    }
+
+    /**
+     * Returns the in-memory copy of a table for the specified user, loading the user's tables
+     * first if needed.
+     * @param userId
+     * @param tableName
+     * @return The cache of the table.
+     */
+    private SettingsCache getOrEstablishCache(int userId, String tableName) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        ArrayMap<String, SettingsCache> caches;
+        synchronized (this) {
+            caches = mSettingsCaches.get(tableUserId);
+        }
+        if (caches == null) {
+            caches = loadSettingsCaches(tableUserId, getOrEstablishDatabase(tableUserId), null);
+        }
+        return caches.get(tableName);
+    }
+
+    /**
+     * Schedules writing the pending values of a cache to the database. Puts arriving before
+     * the write runs share its transaction.
+     * @param cache
+     */
+    private void scheduleWritePending(SettingsCache cache) {
+        synchronized (mDirtyCaches) {
+            if (mDirtyCaches.add(cache) && mDirtyCaches.size() == 1) {
+                mWriteHandler.sendEmptyMessageDelayed(MSG_WRITE_PENDING, WRITE_BEHIND_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Schedules rewriting the shared memory snapshots after a version bump. Bumps arriving
+     * before the rewrite runs share it.
+     */
+    private void scheduleSnapshotRefresh() {
+        if (!mSharedSnapshots.isEmpty() && !mWriteHandler.hasMessages(MSG_REFRESH_SNAPSHOTS)) {
+            mWriteHandler.sendEmptyMessage(MSG_REFRESH_SNAPSHOTS);
+        }
+    }
+
+    /**
+     * Writes the pending values of all dirty caches to the database. Runs on the write
+     * handler thread, and wherever pending values must not wait, like at shutdown.
+     */
+    private void writePendingSettings() {
+        final SettingsCache[] caches;
+        synchronized (mDirtyCaches) {
+            caches = mDirtyCaches.toArray(new SettingsCache[mDirtyCaches.size()]);
+            mDirtyCaches.clear();
+        }
+
+        for (SettingsCache cache : caches) {
+            synchronized (this) {
+                final ArrayMap<String, SettingsCache> userCaches =
+                        mSettingsCaches.get(cache.getUserId());
+                if (userCaches == null || userCaches.get(cache.getTableName()) != cache) {
+                    // The user was removed in the meantime
+                    continue;
                 }
-                dbHelper = new CMDatabaseHelper(getContext(), userId);
-                mDbHelpers.append(userId, dbHelper);
             }
+
+            writePendingSettings(cache, getOrEstablishDatabase(cache.getUserId()));
         }
+    }
 
-        // Initialization of the db *outside* the locks.  It's possible that racing
-        // threads might wind up here, the second having read the cache entries
-        // written by the first, but that's benign: the SQLite helper implementation
-        // manages concurrency itself, and it's important that we not run the db
-        // initialization with any of our own locks held, so we're fine.
-        dbHelper.getWritableDatabase();
+    /**
+     * Writes the pending values of a cache to the database, if there are any.
+     * @param cache
+     * @param dbHelper The database helper of the cache's user.
+     */
+    private void writePendingSettings(SettingsCache cache, CMDatabaseHelper dbHelper) {
+        final String[] revertedNames;
+        synchronized (cache) {
+            if (!cache.hasPendingLocked()) {
+                return;
+            }
+            final long startNs = SystemClock.elapsedRealtimeNanos();
+            revertedNames = cache.writePendingLocked(dbHelper.getWritableDatabase());
+            mStats.recordWrite(cache.getTableName(), startNs);
+        }
+        mStats.count(cache.getTableName(), ProviderStats.OP_WRITE_PENDING);
+        notifyPendingReverted(cache, revertedNames);
+    }
+
+    /**
+     * Notifies about pending values of a cache that could not be written to the database, and
+     * whose cached values went back to the stored ones.
+     * @param cache
+     * @param names The names whose values went back, or null if all values were written.
+     */
+    private void notifyPendingReverted(SettingsCache cache, String[] names) {
+        if (names == null) {
+            return;
+        }
+
+        final String tableName = cache.getTableName();
+        notifyChange(tableName, cache.getUserId(), names);
+        Log.w(TAG, tableName + ": " + names.length + " pending row(s) could not be written");
     }
 
     /**
@@ -824,37 +1829,81 @@ public class CMSettingsProvider extends ContentProvider {
                 UserHandle.USER_OWNER : userId;
     }
 
+    /**
+     * Returns the content uri of a table.
+     * @param tableName
+     * @return The content uri, or null for an unknown table.
+     */
+    private Uri getUriForTable(String tableName) {
+        if (CMDatabaseHelper.CMTableNames.TABLE_SYSTEM.equals(tableName)) {
+            return CMSettings.System.CONTENT_URI;
+        } else if (CMDatabaseHelper.CMTableNames.TABLE_SECURE.equals(tableName)) {
+            return CMSettings.Secure.CONTENT_URI;
+        } else if (CMDatabaseHelper.CMTableNames.TABLE_GLOBAL.equals(tableName)) {
+            return CMSettings.Global.CONTENT_URI;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the version system property of a table.
+     * @param tableName
+     * @return The name of the system property, or null for an unknown table.
+     */
+    private String getVersionPropertyForTable(String tableName) {
+        if (CMDatabaseHelper.CMTableNames.TABLE_SYSTEM.equals(tableName)) {
+            return CMSettings.System.SYS_PROP_CM_SETTING_VERSION;
+        } else if (CMDatabaseHelper.CMTableNames.TABLE_SECURE.equals(tableName)) {
+            return CMSettings.Secure.SYS_PROP_CM_SETTING_VERSION;
+        } else if (CMDatabaseHelper.CMTableNames.TABLE_GLOBAL.equals(tableName)) {
+            return CMSettings.Global.SYS_PROP_CM_SETTING_VERSION;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the names affected by a delete or update, if they can be told from the uri or
+     * a name selection.
+     * @param uri
+     * @param selection
+     * @param selectionArgs
+     * @return The affected names, or null if they are not known.
+     */
+    private String[] getNamesFromSelection(Uri uri, String selection, String[] selectionArgs) {
+        if (isItemUri(sUriMatcher.match(uri))) {
+            return new String[] { uri.getLastPathSegment() };
+        }
+        if (selectionArgs != null && selectionArgs.length == 1 && selection != null
+                && NAME_SELECTION.equals(selection.trim())) {
+            return selectionArgs;
+        }
+        return null;
+    }
+
     /**
      * Modify setting version for an updated table before notifying of change. The
      * {@link CMSettings} class uses these to provide client-side caches.
-     * @param uri to send notifications for
+     *
+     * The version is bumped at once, while observers are notified through the
+     * {@link ChangeDispatcher}, once per burst of changes. If the names are known, each is
+     * notified on its own uri, so observers only wake for the settings they observe and
+     * table observers learn which settings changed. Otherwise the table uri is notified.
+     * @param tableName
      * @param userId
+     * @param names that changed, or null if they are not known
      */
-    private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+    private void notifyChange(String tableName, int userId, String[] names) {
         final boolean isGlobal = tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_GLOBAL);
-        if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SYSTEM)) {
-            property = CMSettings.System.SYS_PROP_CM_SETTING_VERSION;
-        } else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SECURE)) {
-            property = CMSettings.Secure.SYS_PROP_CM_SETTING_VERSION;
-        } else if (isGlobal) {
-            property = CMSettings.Global.SYS_PROP_CM_SETTING_VERSION;
-        }
+        final String property = getVersionPropertyForTable(tableName);
 
         if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+            mGenerationTracker.onChange(tableName, getUserIdForTable(tableName, userId), names,
+                    property);
+            scheduleSnapshotRefresh();
         }
 
-        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
-        try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
-        }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+        mChangeDispatcher.dispatchChange(getUriForTable(tableName), names,
+                isGlobal ? UserHandle.USER_ALL : userId);
     }
 
     private void validateSystemSettingNameValue(String name, String value) {
@@ -879,6 +1928,4 @@ public class CMSettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Delivers content change notifications in bursts. The first change after a quiet period is
+ * notified at once; changes within the dispatch delay of the last notification are merged and
+ * notified when the delay runs out, so a burst of writes wakes each
+ * {@link android.database.ContentObserver} at most once per delay.
+ *
+ * Changes carry the names of the settings that changed, which are notified on their own uris
+ * under the table uri. Observers of a setting are thus only woken for that setting, and
+ * observers of a table that want descendants learn which settings changed from the uris.
+ */
+class ChangeDispatcher extends Handler {
+    private static final String TAG = "CMSettingsChanges";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MSG_DISPATCH = 1;
+
+    private final ContentResolver mContentResolver;
+    private final long mDelayMs;
+
+    // Notification target user -> table uri -> names that changed, or null if the whole table
+    // is to be notified. Guarded by 'this'.
+    private final SparseArray<ArrayMap<Uri, ArraySet<String>>> mPending =
+            new SparseArray<ArrayMap<Uri, ArraySet<String>>>();
+    // Whether a dispatch is scheduled. Guarded by 'this'.
+    private boolean mScheduled;
+    // Uptime of the last dispatch. Guarded by 'this'.
+    private long mLastDispatchMs = Long.MIN_VALUE / 2;
+
+    ChangeDispatcher(Looper looper, ContentResolver contentResolver, long delayMs) {
+        super(looper);
+        mContentResolver = contentResolver;
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * Queues a change notification.
+     * @param tableUri The uri of the table that changed.
+     * @param names The names of the settings that changed, or null to notify the table uri.
+     * @param userId The user to notify, or {@link android.os.UserHandle#USER_ALL}.
+     */
+    void dispatchChange(Uri tableUri, String[] names, int userId) {
+        synchronized (this) {
+            ArrayMap<Uri, ArraySet<String>> tables = mPending.get(userId);
+            if (tables == null) {
+                tables = new ArrayMap<Uri, ArraySet<String>>();
+                mPending.put(userId, tables);
+            }
+            if (names == null) {
+                // The table uri reaches the observers of every name too
+                tables.put(tableUri, null);
+            } else if (!tables.containsKey(tableUri) || tables.get(tableUri) != null) {
+                ArraySet<String> pendingNames = tables.get(tableUri);
+                if (pendingNames == null) {
+                    pendingNames = new ArraySet<String>();
+                    tables.put(tableUri, pendingNames);
+                }
+                for (String name : names) {
+                    if (name != null) {
+                        pendingNames.add(name);
+                    }
+                }
+            }
+
+            if (!mScheduled) {
+                mScheduled = true;
+                sendEmptyMessageAtTime(MSG_DISPATCH,
+                        Math.max(SystemClock.uptimeMillis(), mLastDispatchMs + mDelayMs));
+            }
+        }
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != MSG_DISPATCH) {
+            return;
+        }
+
+        final SparseArray<ArrayMap<Uri, ArraySet<String>>> pending;
+        synchronized (this) {
+            pending = mPending.clone();
+            mPending.clear();
+            mScheduled = false;
+            mLastDispatchMs = SystemClock.uptimeMillis();
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            final int userId = pending.keyAt(i);
+            final ArrayMap<Uri, ArraySet<String>> tables = pending.valueAt(i);
+            for (int j = 0; j < tables.size(); j++) {
+                final Uri tableUri = tables.keyAt(j);
+                final ArraySet<String> names = tables.valueAt(j);
+                if (names == null) {
+                    notifyChange(tableUri, userId);
+                } else {
+                    for (int k = 0; k < names.size(); k++) {
+                        notifyChange(Uri.withAppendedPath(tableUri, names.valueAt(k)), userId);
+                    }
+                }
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri, int userId) {
+        mContentResolver.notifyChange(uri, null, true, userId);
+        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + userId + ": " + uri);
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import cyanogenmod.providers.CMSettings;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The default values of the CM settings tables, resolved from resources, including the region
+ * locked overrides. Resolving them means a resource lookup per setting and a fresh
+ * {@link AssetManager} for the region locked ones, so the resolved table is kept in memory
+ * and on disk, keyed by everything it depends on: the build, the version of this package,
+ * the prebundled mcc and the resource configuration.
+ *
+ * Values that depend on the state of the device rather than on resources, like
+ * {@link CMSettings.Secure#CM_SETUP_WIZARD_COMPLETED}, are not part of the table.
+ */
+final class DefaultSettings {
+    private static final String TAG = "CMDefaultSettings";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String CACHE_FILE_NAME = "cmsettings_defaults";
+    // Bump when the format of the cache file or the set of resolved settings changes
+    private static final int CACHE_VERSION = 1;
+
+    private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
+
+    static final String SOURCE_MEMORY = "memory";
+    static final String SOURCE_DISK = "disk";
+    static final String SOURCE_RESOURCES = "resources";
+
+    private static final Object sLock = new Object();
+    // The last loaded tables and their key. Guarded by sLock.
+    private static String sKey;
+    private static ArrayMap<String, ArrayMap<String, String>> sTables;
+
+    private final ArrayMap<String, ArrayMap<String, String>> mTables;
+    private final String mSource;
+
+    private DefaultSettings(ArrayMap<String, ArrayMap<String, String>> tables, String source) {
+        mTables = tables;
+        mSource = source;
+    }
+
+    /**
+     * Returns the defaults for the current resource configuration, resolving them from
+     * resources only if neither the memory nor the disk cache has them.
+     * @param context
+     * @param publicSrcDir The apk of this package, to resolve the region locked overrides from.
+     * @return The defaults.
+     */
+    static DefaultSettings load(Context context, String publicSrcDir) {
+        final String key = getKey(context);
+        synchronized (sLock) {
+            if (key.equals(sKey)) {
+                return new DefaultSettings(sTables, SOURCE_MEMORY);
+            }
+
+            final File file = new File(context.getCacheDir(), CACHE_FILE_NAME);
+            ArrayMap<String, ArrayMap<String, String>> tables = readCache(file, key);
+            String source = SOURCE_DISK;
+            if (tables == null) {
+                tables = resolve(context, publicSrcDir);
+                writeCache(file, key, tables);
+                source = SOURCE_RESOURCES;
+            }
+            sKey = key;
+            sTables = tables;
+            return new DefaultSettings(tables, source);
+        }
+    }
+
+    /**
+     * @param tableName
+     * @return The default values of a table. Must not be modified.
+     */
+    ArrayMap<String, String> getValues(String tableName) {
+        final ArrayMap<String, String> values = mTables.get(tableName);
+        return values != null ? values : new ArrayMap<String, String>();
+    }
+
+    /**
+     * @return Where the defaults were loaded from, one of {@link #SOURCE_MEMORY},
+     *     {@link #SOURCE_DISK} and {@link #SOURCE_RESOURCES}.
+     */
+    String getSource() {
+        return mSource;
+    }
+
+    private static String getKey(Context context) {
+        long lastUpdateTime = 0;
+        try {
+            lastUpdateTime = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Can't happen for our own package; the build fingerprint still keys the cache
+        }
+
+        final Configuration config = context.getResources().getConfiguration();
+        return CACHE_VERSION + "|" + Build.FINGERPRINT + "|" + lastUpdateTime + "|"
+                + SystemProperties.get(MCC_PROP_NAME) + "|" + config.mcc + "|" + config.mnc
+                + "|" + config.locale + "|" + config.screenLayout + "|" + config.uiMode + "|"
+                + config.orientation + "|" + config.smallestScreenWidthDp + "|"
+                + config.densityDpi;
+    }
+
+    private static ArrayMap<String, ArrayMap<String, String>> readCache(File file, String key) {
+        if (!file.exists()) {
+            return null;
+        }
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileInputStream in = null;
+        try {
+            in = atomicFile.openRead();
+            final DataInputStream data = new DataInputStream(in);
+            if (!key.equals(data.readUTF())) {
+                if (LOCAL_LOGV) Log.v(TAG, "Cached defaults are for another configuration");
+                return null;
+            }
+            final int length = data.readInt();
+            if (length < 0 || length > file.length()) {
+                throw new IOException("Invalid image length: " + length);
+            }
+            final byte[] image = new byte[length];
+            data.readFully(image);
+            return SettingsImage.read(image);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached defaults", e);
+            atomicFile.delete();
+            return null;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unable to read cached defaults", e);
+            atomicFile.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeCache(File file, String key,
+            ArrayMap<String, ArrayMap<String, String>> tables) {
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            final DataOutputStream data = new DataOutputStream(out);
+            final byte[] image = SettingsImage.write(tables, false);
+            data.writeUTF(key);
+            data.writeInt(image.length);
+            data.write(image);
+            data.flush();
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            // Only the next load gets slower
+            Log.w(TAG, "Unable to cache defaults", e);
+            atomicFile.failWrite(out);
+        }
+    }
+
+    private static ArrayMap<String, ArrayMap<String, String>> resolve(Context context,
+            String publicSrcDir) {
+        final Resources res = context.getResources();
+        final Resources regionResources = getRegionLockedResources(res, publicSrcDir);
+
+        final ArrayMap<String, String> system = new ArrayMap<String, String>();
+        putInteger(system, res, CMSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
+                R.integer.def_qs_quick_pulldown);
+        putInteger(system, res, CMSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                R.integer.def_notification_brightness_level);
+        putBoolean(system, res, CMSettings.System.NOTIFICATION_LIGHT_MULTIPLE_LEDS_ENABLE,
+                R.bool.def_notification_multiple_leds);
+        putBoolean(system, res, CMSettings.System.SYSTEM_PROFILES_ENABLED,
+                R.bool.def_profiles_enabled);
+        putInteger(system, res, CMSettings.System.ENABLE_FORWARD_LOOKUP,
+                R.integer.def_forward_lookup);
+        putInteger(system, res, CMSettings.System.ENABLE_PEOPLE_LOOKUP,
+                R.integer.def_people_lookup);
+        putInteger(system, res, CMSettings.System.ENABLE_REVERSE_LOOKUP,
+                R.integer.def_reverse_lookup);
+        putBoolean(system, res, CMSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                R.bool.def_notification_pulse_custom_enable);
+        putBoolean(system, res, CMSettings.System.SWAP_VOLUME_KEYS_ON_ROTATION,
+                R.bool.def_swap_volume_keys_on_rotation);
+        putInteger(system, res, CMSettings.System.STATUS_BAR_BATTERY_STYLE,
+                R.integer.def_battery_style);
+        if (res.getBoolean(R.bool.def_notification_pulse_custom_enable)) {
+            putString(system, res, CMSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                    R.string.def_notification_pulse_custom_value);
+        }
+
+        final ArrayMap<String, String> secure = new ArrayMap<String, String>();
+        putBoolean(secure, res, CMSettings.Secure.ADVANCED_MODE, R.bool.def_advanced_mode);
+        putString(secure, regionResources, CMSettings.Secure.DEFAULT_THEME_COMPONENTS,
+                R.string.def_theme_components);
+        putString(secure, regionResources, CMSettings.Secure.DEFAULT_THEME_PACKAGE,
+                R.string.def_theme_package);
+        putInteger(secure, res, CMSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
+                R.integer.def_force_show_navbar);
+        putString(secure, res, CMSettings.Secure.QS_TILES,
+                org.cyanogenmod.platform.internal.R.string.config_defaultQuickSettingsTiles);
+        putBoolean(secure, res, CMSettings.Secure.QS_USE_MAIN_TILES,
+                R.bool.def_sysui_qs_main_tiles);
+        putBoolean(secure, res, CMSettings.Secure.STATS_COLLECTION,
+                R.bool.def_stats_collection);
+        putBoolean(secure, res, CMSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
+                R.bool.def_lockscreen_visualizer);
+        putString(secure, res, CMSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
+                R.string.def_protected_component_managers);
+        putString(secure, res, CMSettings.Secure.ENABLED_EVENT_LIVE_LOCKS_KEY,
+                R.string.def_enabled_event_lls_components);
+
+        final ArrayMap<String, String> global = new ArrayMap<String, String>();
+        putBoolean(global, res, CMSettings.Global.POWER_NOTIFICATIONS_ENABLED,
+                R.bool.def_power_notifications_enabled);
+        putBoolean(global, res, CMSettings.Global.POWER_NOTIFICATIONS_VIBRATE,
+                R.bool.def_power_notifications_vibrate);
+        putString(global, res, CMSettings.Global.POWER_NOTIFICATIONS_RINGTONE,
+                R.string.def_power_notifications_ringtone);
+        putInteger(global, res, CMSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                R.integer.def_temperature_unit);
+
+        final ArrayMap<String, ArrayMap<String, String>> tables =
+                new ArrayMap<String, ArrayMap<String, String>>(3);
+        tables.put(CMDatabaseHelper.CMTableNames.TABLE_SYSTEM, system);
+        tables.put(CMDatabaseHelper.CMTableNames.TABLE_SECURE, secure);
+        tables.put(CMDatabaseHelper.CMTableNames.TABLE_GLOBAL, global);
+        if (LOCAL_LOGV) Log.v(TAG, "Resolved defaults from resources: " + tables);
+        return tables;
+    }
+
+    /**
+     * Returns the resources for the prebundled mcc, which region locked settings are resolved
+     * from. They are set up once for all region locked settings.
+     * @param res The default resources.
+     * @param publicSrcDir
+     * @return The resources for the mcc, or the default resources if there is no valid mcc.
+     */
+    private static Resources getRegionLockedResources(Resources res, String publicSrcDir) {
+        final String mcc = SystemProperties.get(MCC_PROP_NAME);
+        if (TextUtils.isEmpty(mcc)) {
+            return res;
+        }
+
+        final Configuration tempConfiguration = new Configuration();
+        try {
+            tempConfiguration.mcc = Integer.parseInt(mcc);
+        } catch (NumberFormatException e) {
+            // not able to parse mcc, use the default resources
+            Log.w(TAG, "Invalid " + MCC_PROP_NAME + ": " + mcc, e);
+            return res;
+        }
+
+        final AssetManager assetManager = new AssetManager();
+        if (!TextUtils.isEmpty(publicSrcDir)) {
+            assetManager.addAssetPath(publicSrcDir);
+        }
+        return new Resources(assetManager, new DisplayMetrics(), tempConfiguration);
+    }
+
+    private static void putString(ArrayMap<String, String> values, Resources res, String name,
+            int resId) {
+        values.put(name, res.getString(resId));
+    }
+
+    private static void putBoolean(ArrayMap<String, String> values, Resources res, String name,
+            int resId) {
+        values.put(name, res.getBoolean(resId) ? "1" : "0");
+    }
+
+    private static void putInteger(ArrayMap<String, String> values, Resources res, String name,
+            int resId) {
+        values.put(name, Integer.toString(res.getInteger(resId)));
+    }
+}
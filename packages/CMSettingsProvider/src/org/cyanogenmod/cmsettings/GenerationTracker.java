@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import cyanogenmod.providers.CMSettings;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a generation number for every name bucket of every table and user, so that
+ * {@link CMSettings} clients can drop only the cached names that actually changed when a
+ * table version is bumped.
+ */
+class GenerationTracker {
+    private static final String TAG = "CMSettingsGenerations";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Identifies this provider instance, so clients can tell that generations restarted.
+    private final long mEpoch = SystemClock.elapsedRealtimeNanos();
+
+    // Table name -> user id -> bucket generations. Guarded by 'this'.
+    private final ArrayMap<String, SparseArray<long[]>> mGenerations =
+            new ArrayMap<String, SparseArray<long[]>>();
+
+    // Number of generation arrays created so far. Guarded by 'this'.
+    private long mArraysCreated = 0;
+
+    // Users removed since this instance started, reported to clients so they evict their
+    // caches. A user id that is written again is dropped from it. Guarded by 'this'.
+    private final SparseBooleanArray mRemovedUsers = new SparseBooleanArray();
+
+    /**
+     * Records a change to a table and bumps the table version property. Both happen under the
+     * same lock as {@link #getGenerations}, so clients always see generations that match the
+     * version they are returned with.
+     * @param tableName The table that changed.
+     * @param userId The user whose table changed.
+     * @param names The names that changed, or null if they are not known.
+     * @param versionProperty The version system property of the table.
+     */
+    synchronized void onChange(String tableName, int userId, String[] names,
+            String versionProperty) {
+        mRemovedUsers.delete(userId);
+        final long[] generations = getGenerationsLocked(tableName, userId);
+        if (names == null) {
+            for (int i = 0; i < generations.length; i++) {
+                generations[i]++;
+            }
+        } else {
+            for (String name : names) {
+                if (name != null) {
+                    generations[CMSettings.getGenerationBucket(name)]++;
+                }
+            }
+        }
+
+        long version = SystemProperties.getLong(versionProperty, 0) + 1;
+        if (LOCAL_LOGV) Log.v(TAG, "property: " + versionProperty + "=" + version);
+        SystemProperties.set(versionProperty, Long.toString(version));
+    }
+
+    /**
+     * Returns the bucket generations of a table together with the table version they match,
+     * and the users removed since this instance started.
+     * @param tableName The table to return the generations of.
+     * @param userId The user to return the generations of.
+     * @param versionProperty The version system property of the table.
+     * @return A {@link Bundle} suitable as a call() response.
+     */
+    synchronized Bundle getGenerations(String tableName, int userId, String versionProperty) {
+        final Bundle result = new Bundle();
+        result.putLong(CMSettings.CALL_METHOD_EPOCH_KEY, mEpoch);
+        result.putLong(CMSettings.CALL_METHOD_VERSION_KEY,
+                SystemProperties.getLong(versionProperty, 0));
+        result.putLongArray(CMSettings.CALL_METHOD_GENERATIONS_KEY,
+                getGenerationsLocked(tableName, userId).clone());
+        if (mRemovedUsers.size() > 0) {
+            final int[] removedUsers = new int[mRemovedUsers.size()];
+            for (int i = 0; i < removedUsers.length; i++) {
+                removedUsers[i] = mRemovedUsers.keyAt(i);
+            }
+            result.putIntArray(CMSettings.CALL_METHOD_REMOVED_USERS_KEY, removedUsers);
+        }
+        return result;
+    }
+
+    /**
+     * Copies the bucket generations of a table together with the table version they match.
+     * @param tableName The table to copy the generations of.
+     * @param userId The user to copy the generations of.
+     * @param versionProperty The version system property of the table.
+     * @param generations Receives the generations.
+     * @return The table version.
+     */
+    synchronized long copyGenerations(String tableName, int userId, String versionProperty,
+            long[] generations) {
+        final long[] current = getGenerationsLocked(tableName, userId);
+        System.arraycopy(current, 0, generations, 0, current.length);
+        return SystemProperties.getLong(versionProperty, 0);
+    }
+
+    /**
+     * @return The epoch that identifies this provider instance to clients.
+     */
+    long getEpoch() {
+        return mEpoch;
+    }
+
+    /**
+     * Forgets the generations of a removed user and bumps the table version properties, so
+     * clients re-read generations, which list the user as removed, and never keep the
+     * removed user's values for a reused id.
+     * @param userId The id of the user that is removed.
+     * @param versionProperties The version system properties of all tables.
+     */
+    synchronized void onUserRemoved(int userId, String[] versionProperties) {
+        for (int i = 0; i < mGenerations.size(); i++) {
+            mGenerations.valueAt(i).delete(userId);
+        }
+        mRemovedUsers.put(userId, true);
+        for (String versionProperty : versionProperties) {
+            long version = SystemProperties.getLong(versionProperty, 0) + 1;
+            SystemProperties.set(versionProperty, Long.toString(version));
+        }
+    }
+
+    private long[] getGenerationsLocked(String tableName, int userId) {
+        SparseArray<long[]> tableGenerations = mGenerations.get(tableName);
+        if (tableGenerations == null) {
+            tableGenerations = new SparseArray<long[]>();
+            mGenerations.put(tableName, tableGenerations);
+        }
+        long[] generations = tableGenerations.get(userId);
+        if (generations == null) {
+            // Seed every new array differently, so a user id that is reused after a user
+            // removal never matches generations a client still holds for the old user.
+            generations = new long[CMSettings.GENERATION_BUCKET_COUNT];
+            Arrays.fill(generations, ++mArraysCreated << 32);
+            tableGenerations.put(userId, generations);
+        }
+        return generations;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import org.cyanogenmod.internal.util.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-table operation counters and latency histograms of the {@link CMSettingsProvider},
+ * printed by its dump. Safe to update from any thread.
+ */
+class ProviderStats {
+    static final int OP_GET = 0;
+    static final int OP_GET_BATCH = 1;
+    static final int OP_LIST = 2;
+    static final int OP_PUT = 3;
+    static final int OP_QUERY = 4;
+    static final int OP_INSERT = 5;
+    static final int OP_BULK_INSERT = 6;
+    static final int OP_DELETE = 7;
+    static final int OP_UPDATE = 8;
+    static final int OP_WRITE_PENDING = 9;
+    static final int OP_EXPORT = 10;
+    static final int OP_IMPORT = 11;
+    static final int OP_PUT_BATCH = 12;
+
+    private static final String[] OP_NAMES = new String[] {
+            "get", "getBatch", "list", "put", "query", "insert", "bulkInsert", "delete",
+            "update", "writePending", "export", "import", "putBatch" };
+
+    private static final class TableStats {
+        final AtomicLongArray ops = new AtomicLongArray(OP_NAMES.length);
+        // Time spent serving call() lookups from memory
+        final LatencyHistogram callLatency = new LatencyHistogram();
+        // Time spent in SQLite
+        final LatencyHistogram readLatency = new LatencyHistogram();
+        final LatencyHistogram writeLatency = new LatencyHistogram();
+    }
+
+    // Never modified after construction, so reads don't need to synchronize.
+    private final ArrayMap<String, TableStats> mTables = new ArrayMap<String, TableStats>();
+
+    ProviderStats(String... tableNames) {
+        for (String tableName : tableNames) {
+            mTables.put(tableName, new TableStats());
+        }
+    }
+
+    void count(String tableName, int op) {
+        final TableStats stats = mTables.get(tableName);
+        if (stats != null) {
+            stats.ops.incrementAndGet(op);
+        }
+    }
+
+    /**
+     * Records a call() lookup that started at {@code startNs}.
+     * @param tableName
+     * @param op
+     * @param startNs The {@link SystemClock#elapsedRealtimeNanos} the lookup started at.
+     */
+    void recordCall(String tableName, int op, long startNs) {
+        final TableStats stats = mTables.get(tableName);
+        if (stats != null) {
+            stats.ops.incrementAndGet(op);
+            stats.callLatency.record(SystemClock.elapsedRealtimeNanos() - startNs);
+        }
+    }
+
+    /**
+     * Records a SQLite read that started at {@code startNs}.
+     */
+    void recordRead(String tableName, long startNs) {
+        final TableStats stats = mTables.get(tableName);
+        if (stats != null) {
+            stats.readLatency.record(SystemClock.elapsedRealtimeNanos() - startNs);
+        }
+    }
+
+    /**
+     * Records a SQLite write that started at {@code startNs}.
+     */
+    void recordWrite(String tableName, long startNs) {
+        final TableStats stats = mTables.get(tableName);
+        if (stats != null) {
+            stats.writeLatency.record(SystemClock.elapsedRealtimeNanos() - startNs);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        for (int i = 0; i < mTables.size(); i++) {
+            final TableStats stats = mTables.valueAt(i);
+            pw.print(prefix);
+            pw.print(mTables.keyAt(i));
+            pw.print(":");
+            for (int op = 0; op < OP_NAMES.length; op++) {
+                pw.print(" ");
+                pw.print(OP_NAMES[op]);
+                pw.print("=");
+                pw.print(stats.ops.get(op));
+            }
+            pw.println();
+            stats.callLatency.dump(pw, prefix + "  call latency:");
+            stats.readLatency.dump(pw, prefix + "  sqlite read latency:");
+            stats.writeLatency.dump(pw, prefix + "  sqlite write latency:");
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of one settings table of one user. The database stays the durable store;
+ * this copy serves single-key, batched and full-table reads without touching SQLite.
+ *
+ * Reads don't lock. Writers must synchronize on the cache around the database write and the
+ * matching cache update, so the cache sees writes in the same order as the database.
+ *
+ * Values can also be put ahead of the database with {@link #putPending}; they are visible at
+ * once and reach the database with the next {@link #writePendingLocked}. Writers and readers
+ * of the database must write the pending values before their own access, so the database
+ * sees writes in order too and never serves values older than the cache.
+ */
+class SettingsCache {
+    private static final String TAG = "SettingsCache";
+
+    private static final String[] PROJECTION_NAME_VALUE = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE };
+
+    // Stands in for null values, since ConcurrentHashMap can't hold nulls. Compared by identity.
+    private static final String NULL_VALUE = new String("null");
+
+    private final String mTableName;
+    private final int mUserId;
+    private final ConcurrentHashMap<String, String> mValues =
+            new ConcurrentHashMap<String, String>();
+
+    // Values not yet written to the database. Guarded by 'this'.
+    private final ArrayMap<String, String> mPendingValues = new ArrayMap<String, String>();
+
+    // Compiled once and reused for every write of the table. Guarded by 'this'.
+    private SQLiteStatement mUpsertStatement;
+    private SQLiteDatabase mUpsertDatabase;
+
+    SettingsCache(String tableName, int userId) {
+        mTableName = tableName;
+        mUserId = userId;
+    }
+
+    String getTableName() {
+        return mTableName;
+    }
+
+    /**
+     * @return The id of the user whose database holds the table.
+     */
+    int getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * Replaces the cached values with the current contents of the table. The difference is
+     * applied in place, so concurrent reads of names that stay in the table never miss.
+     * @param db The database to read the table from.
+     */
+    void reload(SQLiteDatabase db) {
+        final ArrayMap<String, String> values = new ArrayMap<String, String>();
+        final Cursor cursor = db.query(mTableName, PROJECTION_NAME_VALUE, null, null, null, null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                final String value = cursor.getString(1);
+                values.put(cursor.getString(0), value == null ? NULL_VALUE : value);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        mValues.putAll(values);
+        mValues.keySet().retainAll(values.keySet());
+    }
+
+    /**
+     * @param name The name of the setting.
+     * @return The value of the setting, or null if it is not set or its value is null.
+     */
+    String get(String name) {
+        final String value = mValues.get(name);
+        return value == NULL_VALUE ? null : value;
+    }
+
+    void put(String name, String value) {
+        mValues.put(name, value == null ? NULL_VALUE : value);
+    }
+
+    void remove(String name) {
+        mValues.remove(name);
+    }
+
+    /**
+     * Puts a value that is written to the database later. Callers must hold the cache lock.
+     * @param name The name of the setting.
+     * @param value The value of the setting.
+     */
+    void putPending(String name, String value) {
+        put(name, value);
+        mPendingValues.put(name, value);
+    }
+
+    /**
+     * @return Whether values are waiting to be written to the database. Callers must hold
+     *     the cache lock.
+     */
+    boolean hasPendingLocked() {
+        return !mPendingValues.isEmpty();
+    }
+
+    /**
+     * Writes all pending values to the database in a single transaction. Values that can't
+     * be written are dropped, and their cached values are restored from the database, so the
+     * cache doesn't serve values that were never stored. Callers must hold the cache lock.
+     * @param db The database to write the values to.
+     * @return The names whose cached values were restored, or null if all values were written.
+     */
+    String[] writePendingLocked(SQLiteDatabase db) {
+        final int count = mPendingValues.size();
+        if (count == 0) {
+            return null;
+        }
+
+        ArrayList<String> failedNames = null;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                final String name = mPendingValues.keyAt(i);
+                if (upsertLocked(db, name, mPendingValues.valueAt(i)) < 0) {
+                    if (failedNames == null) {
+                        failedNames = new ArrayList<String>();
+                    }
+                    failedNames.add(name);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mPendingValues.clear();
+
+        if (failedNames == null) {
+            return null;
+        }
+        for (String name : failedNames) {
+            reload(db, name);
+        }
+        return failedNames.toArray(new String[failedNames.size()]);
+    }
+
+    /**
+     * Replaces the cached value of one setting with its value in the table.
+     * @param db The database to read the table from.
+     * @param name The name of the setting.
+     */
+    private void reload(SQLiteDatabase db, String name) {
+        final Cursor cursor = db.query(mTableName, PROJECTION_NAME_VALUE,
+                Settings.NameValueTable.NAME + " = ?", new String[] { name }, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                put(name, cursor.getString(1));
+            } else {
+                remove(name);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes a value to the database, replacing the row of the same name. The statement is
+     * compiled once, so callers must hold the cache lock. The cached value isn't updated.
+     * @param db The database to write the value to.
+     * @param name The name of the setting.
+     * @param value The value of the setting.
+     * @return The row id of the value, or -1 if it could not be written.
+     */
+    long upsertLocked(SQLiteDatabase db, String name, String value) {
+        if (mUpsertStatement == null || mUpsertDatabase != db) {
+            closeLocked();
+            // The table is created with "name UNIQUE ON CONFLICT REPLACE"
+            mUpsertStatement = db.compileStatement("INSERT INTO " + mTableName + "("
+                    + Settings.NameValueTable.NAME + "," + Settings.NameValueTable.VALUE
+                    + ") VALUES(?,?);");
+            mUpsertDatabase = db;
+        }
+
+        bindStringOrNull(mUpsertStatement, 1, name);
+        bindStringOrNull(mUpsertStatement, 2, value);
+        try {
+            return mUpsertStatement.executeInsert();
+        } catch (SQLException e) {
+            // Like SQLiteDatabase.insert
+            Log.e(TAG, "Error writing " + name + " to " + mTableName, e);
+            return -1;
+        } finally {
+            mUpsertStatement.clearBindings();
+        }
+    }
+
+    /**
+     * Releases the compiled upsert statement, which is compiled again on the next write.
+     * Callers must hold the cache lock.
+     */
+    void closeLocked() {
+        if (mUpsertStatement != null) {
+            mUpsertStatement.close();
+            mUpsertStatement = null;
+            mUpsertDatabase = null;
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Copies every cached setting into a {@link Bundle}.
+     * @param out The bundle to copy into.
+     */
+    void putAllInto(Bundle out) {
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            final String value = entry.getValue();
+            out.putString(entry.getKey(), value == NULL_VALUE ? null : value);
+        }
+    }
+
+    /**
+     * Copies every cached setting into a map.
+     * @param out The map to copy into.
+     */
+    void putAllInto(Map<String, String> out) {
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            final String value = entry.getValue();
+            out.put(entry.getKey(), value == NULL_VALUE ? null : value);
+        }
+    }
+
+    int size() {
+        return mValues.size();
+    }
+}
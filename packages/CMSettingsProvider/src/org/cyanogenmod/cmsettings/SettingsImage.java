@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.util.ArrayMap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary image of the settings tables of one user, used by the export and import call()
+ * methods of the {@link CMSettingsProvider}.
+ *
+ * The image starts with a header of the magic number, the format version and flags. The body
+ * follows, deflated if {@link #FLAG_COMPRESSED} is set: the number of tables, then for each
+ * table its name and number of rows, then for each row its name and value. Numbers are big
+ * endian ints and strings are UTF-8 prefixed by their length in bytes, with a length of -1
+ * for null values.
+ */
+final class SettingsImage {
+    private static final int MAGIC = 0x434d5349; // "CMSI"
+    private static final byte VERSION = 1;
+    private static final byte FLAG_COMPRESSED = 0x01;
+    private static final int HEADER_SIZE = 6;
+
+    // Upper bound of the body size, so a malformed image can't make us inflate without end.
+    private static final int MAX_BODY_SIZE = 4 * 1024 * 1024;
+
+    private SettingsImage() {
+        // no instantiation
+    }
+
+    /**
+     * Encodes settings tables.
+     * @param tables Table name -> setting name -> value.
+     * @param compress Whether to deflate the body.
+     * @return The image.
+     */
+    static byte[] write(ArrayMap<String, ArrayMap<String, String>> tables, boolean compress) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeInt(body, tables.size());
+        for (int i = 0; i < tables.size(); i++) {
+            final ArrayMap<String, String> rows = tables.valueAt(i);
+            writeString(body, tables.keyAt(i));
+            writeInt(body, rows.size());
+            for (int j = 0; j < rows.size(); j++) {
+                writeString(body, rows.keyAt(j));
+                writeString(body, rows.valueAt(j));
+            }
+        }
+
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+        writeInt(image, MAGIC);
+        image.write(VERSION);
+        image.write(compress ? FLAG_COMPRESSED : 0);
+        if (compress) {
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                deflater.setInput(body.toByteArray());
+                deflater.finish();
+                final byte[] buffer = new byte[4096];
+                while (!deflater.finished()) {
+                    image.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } finally {
+                deflater.end();
+            }
+        } else {
+            image.write(body.toByteArray(), 0, body.size());
+        }
+        return image.toByteArray();
+    }
+
+    /**
+     * Decodes an image written by {@link #write}. The whole image is checked before anything
+     * is returned.
+     * @param image The image.
+     * @return Table name -> setting name -> value.
+     * @throws IllegalArgumentException if the image is malformed or of an unknown version.
+     */
+    static ArrayMap<String, ArrayMap<String, String>> read(byte[] image) {
+        if (image == null || image.length < HEADER_SIZE) {
+            throw new IllegalArgumentException("Settings image is truncated");
+        }
+
+        final ByteBuffer header = ByteBuffer.wrap(image, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a settings image");
+        }
+        final byte version = header.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported settings image version: " + version);
+        }
+        final byte flags = header.get();
+        if ((flags & ~FLAG_COMPRESSED) != 0) {
+            throw new IllegalArgumentException("Unknown settings image flags: " + flags);
+        }
+
+        final ByteBuffer body = (flags & FLAG_COMPRESSED) != 0
+                ? ByteBuffer.wrap(inflate(image, HEADER_SIZE))
+                : ByteBuffer.wrap(image, HEADER_SIZE, image.length - HEADER_SIZE);
+        try {
+            final int tableCount = readCount(body);
+            final ArrayMap<String, ArrayMap<String, String>> tables =
+                    new ArrayMap<String, ArrayMap<String, String>>(tableCount);
+            for (int i = 0; i < tableCount; i++) {
+                final String tableName = readString(body);
+                final int rowCount = readCount(body);
+                final ArrayMap<String, String> rows = new ArrayMap<String, String>(rowCount);
+                for (int j = 0; j < rowCount; j++) {
+                    final String name = readString(body);
+                    if (name == null || rows.containsKey(name)) {
+                        throw new IllegalArgumentException("Null or duplicate setting name in "
+                                + tableName);
+                    }
+                    rows.put(name, readString(body));
+                }
+                if (tableName == null || tables.put(tableName, rows) != null) {
+                    throw new IllegalArgumentException("Null or duplicate table name");
+                }
+            }
+            if (body.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing data in settings image");
+            }
+            return tables;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Settings image is truncated");
+        }
+    }
+
+    private static byte[] inflate(byte[] image, int offset) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(image, offset, image.length - offset);
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Settings image is truncated");
+                }
+                body.write(buffer, 0, count);
+                if (body.size() > MAX_BODY_SIZE) {
+                    throw new IllegalArgumentException("Settings image is too large");
+                }
+            }
+            if (inflater.getRemaining() != 0) {
+                throw new IllegalArgumentException("Trailing data in settings image");
+            }
+            return body.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Settings image is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeInt(out, -1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static int readCount(ByteBuffer in) {
+        final int count = in.getInt();
+        // Every entry takes at least four bytes, which bounds allocations by the image size
+        if (count < 0 || count > in.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid count in settings image: " + count);
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length in settings image: "
+                    + length);
+        }
+        final String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
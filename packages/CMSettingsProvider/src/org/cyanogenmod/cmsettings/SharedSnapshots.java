@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import org.cyanogenmod.internal.util.SharedSettingsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only copies of settings tables in memory mapped files, which clients map and read
+ * without a binder call. See {@link SharedSettingsTable} for the layout.
+ *
+ * A table is only published once a client asks for it, and is rewritten from its
+ * {@link SettingsCache} after every version bump of the table, together with the name bucket
+ * generations of the {@link GenerationTracker}. Until then clients see the
+ * old version in the file and fall back to the provider, so a late rewrite is never wrong.
+ */
+class SharedSnapshots {
+    private static final String TAG = "CMSettingsSnapshots";
+
+    private static final String DIR_NAME = "snapshots";
+    private static final int MIN_FILE_SIZE = 16 * 1024;
+
+    private static final class Snapshot {
+        final SettingsCache cache;
+        final String versionProperty;
+        File file;
+        MappedByteBuffer buffer;
+        long version = -1;
+
+        Snapshot(SettingsCache cache, String versionProperty) {
+            this.cache = cache;
+            this.versionProperty = versionProperty;
+        }
+    }
+
+    private final File mDir;
+    private final GenerationTracker mGenerationTracker;
+
+    // Keyed by the cache they copy. Guarded by 'this'.
+    private final ArrayMap<SettingsCache, Snapshot> mSnapshots =
+            new ArrayMap<SettingsCache, Snapshot>();
+    // Makes file names unique within this process. Guarded by 'this'.
+    private int mFileCounter;
+
+    /**
+     * Retires and deletes the files of a previous provider process, so clients still mapping
+     * them ask for new ones.
+     * @param filesDir The files directory of the provider.
+     * @param generationTracker The generations to publish with the tables.
+     */
+    SharedSnapshots(File filesDir, GenerationTracker generationTracker) {
+        mDir = new File(filesDir, DIR_NAME);
+        mGenerationTracker = generationTracker;
+        final File[] oldFiles = mDir.listFiles();
+        if (oldFiles != null) {
+            for (File file : oldFiles) {
+                if (file.length() == 0) {
+                    file.delete();
+                    continue;
+                }
+                try {
+                    final MappedByteBuffer buffer = map(file, file.length());
+                    SharedSettingsTable.retire(buffer);
+                } catch (IOException e) {
+                    Log.w(TAG, "Can't retire " + file, e);
+                }
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a read-only descriptor of the file holding a table, publishing it first if
+     * needed.
+     * @param cache The cache of the table.
+     * @param versionProperty The version system property of the table.
+     * @return The descriptor. Callers must close it.
+     * @throws IOException If the file can't be written.
+     */
+    synchronized ParcelFileDescriptor open(SettingsCache cache, String versionProperty)
+            throws IOException {
+        Snapshot snapshot = mSnapshots.get(cache);
+        if (snapshot == null) {
+            snapshot = new Snapshot(cache, versionProperty);
+            writeLocked(snapshot);
+            mSnapshots.put(cache, snapshot);
+        }
+        return ParcelFileDescriptor.open(snapshot.file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Rewrites every published table that is behind its version system property.
+     */
+    synchronized void refresh() {
+        for (int i = 0; i < mSnapshots.size(); i++) {
+            final Snapshot snapshot = mSnapshots.valueAt(i);
+            if (snapshot.version != SystemProperties.getLong(snapshot.versionProperty, 0)) {
+                try {
+                    writeLocked(snapshot);
+                } catch (IOException e) {
+                    Log.w(TAG, "Can't write " + snapshot.file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether any table is published, so callers can skip scheduling refreshes.
+     */
+    synchronized boolean isEmpty() {
+        return mSnapshots.isEmpty();
+    }
+
+    /**
+     * Retires and deletes the files of a removed user.
+     * @param userId The id of the removed user.
+     */
+    synchronized void onUserRemoved(int userId) {
+        for (int i = mSnapshots.size() - 1; i >= 0; i--) {
+            final Snapshot snapshot = mSnapshots.valueAt(i);
+            if (snapshot.cache.getUserId() == userId) {
+                SharedSettingsTable.retire(snapshot.buffer);
+                snapshot.file.delete();
+                mSnapshots.removeAt(i);
+            }
+        }
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        for (int i = 0; i < mSnapshots.size(); i++) {
+            final Snapshot snapshot = mSnapshots.valueAt(i);
+            pw.println(prefix + "user " + snapshot.cache.getUserId() + " "
+                    + snapshot.cache.getTableName() + ": version=" + snapshot.version
+                    + " size=" + snapshot.buffer.capacity());
+        }
+    }
+
+    private void writeLocked(Snapshot snapshot) throws IOException {
+        // Read before copying, so the values are at least as new as the version
+        final long[] generations = new long[SharedSettingsTable.GENERATION_COUNT];
+        final long version = mGenerationTracker.copyGenerations(snapshot.cache.getTableName(),
+                snapshot.cache.getUserId(), snapshot.versionProperty, generations);
+        final long epoch = mGenerationTracker.getEpoch();
+        final ArrayMap<String, String> values = new ArrayMap<String, String>();
+        snapshot.cache.putAllInto(values);
+
+        if (snapshot.buffer != null && SharedSettingsTable.write(snapshot.buffer, version,
+                epoch, generations, values)) {
+            snapshot.version = version;
+            return;
+        }
+
+        // Outgrew the file, or there is none yet. Readers of the old file map the new one
+        // once it is retired.
+        final int size = Math.max(MIN_FILE_SIZE, SharedSettingsTable.getRequiredSize(values) * 2);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Can't create " + mDir);
+        }
+        final File file = new File(mDir, snapshot.cache.getTableName() + "_"
+                + snapshot.cache.getUserId() + "_" + (mFileCounter++));
+        final MappedByteBuffer buffer = map(file, size);
+        SharedSettingsTable.write(buffer, version, epoch, generations, values);
+
+        if (snapshot.buffer != null) {
+            SharedSettingsTable.retire(snapshot.buffer);
+            snapshot.file.delete();
+        }
+        snapshot.file = file;
+        snapshot.buffer = buffer;
+        snapshot.version = version;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings.tests;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import org.cyanogenmod.cmsettings.CMDatabaseHelper;
+import org.cyanogenmod.cmsettings.CMDatabaseHelper.CMTableNames;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that queries of a settings database keep being served while another thread holds a
+ * long write transaction on it. The database is configured by {@link CMDatabaseHelper}, but
+ * lives in the data directory of this package.
+ */
+public class CMSettingsProviderConcurrencyTest extends AndroidTestCase {
+    private static final String KEY = "testConcurrencyKey";
+
+    // How long reads are issued while the transaction is held
+    private static final long READ_PERIOD_MS = 2000;
+    // A read taking longer than this waited for the writer
+    private static final long MAX_READ_MS = 500;
+    // How long the writer holds its transaction at most if the test fails to end it
+    private static final long WRITE_MAX_MS = 10000;
+
+    private static final String[] PROJECTIONS = new String[] { Settings.NameValueTable.NAME,
+            Settings.NameValueTable.VALUE };
+
+    /**
+     * Creates the secure table only, since the default settings are resources of the
+     * provider package.
+     */
+    private static class TestDatabaseHelper extends CMDatabaseHelper {
+        TestDatabaseHelper(Context context) {
+            super(context, UserHandle.USER_OWNER);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CMTableNames.TABLE_SECURE + " ("
+                    + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + "name TEXT UNIQUE ON CONFLICT REPLACE,"
+                    + "value TEXT);");
+        }
+    }
+
+    private TestDatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new TestDatabaseHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+
+        ContentValues contentValue = new ContentValues();
+        contentValue.put(Settings.NameValueTable.NAME, KEY);
+        contentValue.put(Settings.NameValueTable.VALUE, "committed");
+        assertTrue(mDb.insert(CMTableNames.TABLE_SECURE, null, contentValue) >= 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(mDbHelper.getDatabaseName());
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testReadsProgressDuringWriteTransaction() throws Exception {
+        assertTrue("Database doesn't use write-ahead logging", mDb.isWriteAheadLoggingEnabled());
+
+        // Writes "uncommitted" to KEY in a transaction held until it is released
+        final CountDownLatch began = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread writer = new Thread("TestWriter") {
+            @Override
+            public void run() {
+                mDb.beginTransaction();
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put(Settings.NameValueTable.NAME, KEY);
+                    values.put(Settings.NameValueTable.VALUE, "uncommitted");
+                    mDb.insert(CMTableNames.TABLE_SECURE, null, values);
+                    began.countDown();
+                    release.await(WRITE_MAX_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // fall through to the rollback
+                } finally {
+                    // Never marked successful, so the write is rolled back
+                    mDb.endTransaction();
+                }
+            }
+        };
+        writer.start();
+        assertTrue("Write transaction didn't begin",
+                began.await(WRITE_MAX_MS, TimeUnit.MILLISECONDS));
+
+        final long readStartMs = SystemClock.elapsedRealtime();
+        int reads = 0;
+        try {
+            while (SystemClock.elapsedRealtime() - readStartMs < READ_PERIOD_MS) {
+                final long startMs = SystemClock.elapsedRealtime();
+                Cursor cursor = mDb.query(CMTableNames.TABLE_SECURE, PROJECTIONS,
+                        Settings.NameValueTable.NAME + " = ?", new String[] { KEY },
+                        null, null, null);
+                try {
+                    assertEquals(1, cursor.getCount());
+                    assertTrue(cursor.moveToFirst());
+                    // The transaction isn't committed, readers must never see its value
+                    assertEquals("committed", cursor.getString(1));
+                } finally {
+                    cursor.close();
+                }
+                final long readMs = SystemClock.elapsedRealtime() - startMs;
+                assertTrue("Read waited " + readMs + "ms for the writer", readMs < MAX_READ_MS);
+                reads++;
+            }
+        } finally {
+            release.countDown();
+            writer.join();
+        }
+
+        assertTrue("Only " + reads + " read(s) completed", reads > 1);
+    }
+}
@@ -24,7 +24,10 @@ import android.content.pm.UserInfo;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
@@ -34,7 +37,13 @@ import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
 import cyanogenmod.providers.CMSettings;
 import org.cyanogenmod.cmsettings.CMSettingsProvider;
+import org.cyanogenmod.internal.util.SharedSettingsTable;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -313,6 +322,120 @@ import java.util.Map;
          }
      }
 
+     @MediumTest
+     public void testExportImportSuccess() {
+         testExportImportForUri(CMSettings.Secure.CONTENT_URI, false);
+         testExportImportForUri(CMSettings.Global.CONTENT_URI, true);
+     }
+
+     @MediumTest
+     public void testSharedSnapshot() throws IOException {
+         String key = "testKey1";
+
+         ContentValues contentValue = new ContentValues();
+         contentValue.put(Settings.NameValueTable.NAME, key);
+         contentValue.put(Settings.NameValueTable.VALUE, "value1");
+         mContentResolver.insert(CMSettings.Secure.CONTENT_URI, contentValue);
+
+         try {
+             ByteBuffer table;
+             ParcelFileDescriptor pfd = mContentResolver.openFileDescriptor(
+                     CMSettings.Secure.CONTENT_URI, "r");
+             try {
+                 FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+                 table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+             } finally {
+                 pfd.close();
+             }
+             assertEquals("value1", readSharedTable(table, key));
+
+             // the snapshot follows later writes
+             contentValue.put(Settings.NameValueTable.VALUE, "value2");
+             mContentResolver.insert(CMSettings.Secure.CONTENT_URI, contentValue);
+             assertEquals("value2", readSharedTable(table, key));
+             assertNull(readSharedTable(table, "testKeyNotSet"));
+         } finally {
+             mContentResolver.delete(CMSettings.Secure.CONTENT_URI,
+                     Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+         }
+
+         try {
+             mContentResolver.openFileDescriptor(CMSettings.Secure.CONTENT_URI, "rw");
+             fail("Writable snapshot was opened");
+         } catch (SecurityException | IOException e) {
+             // expected
+         }
+     }
+
+     /**
+      * Reads a value from a snapshot once it has caught up with the current version.
+      */
+     private String readSharedTable(ByteBuffer table, String key) {
+         final long deadline = SystemClock.elapsedRealtime() + 1000;
+         String value = SharedSettingsTable.UNAVAILABLE;
+         while (SystemClock.elapsedRealtime() < deadline) {
+             value = SharedSettingsTable.read(table, key,
+                     SystemProperties.getLong(CMSettings.Secure.SYS_PROP_CM_SETTING_VERSION, 0));
+             if (value != SharedSettingsTable.UNAVAILABLE) {
+                 break;
+             }
+             // rewritten on the provider's write thread
+             SystemClock.sleep(10);
+         }
+         assertNotSame(SharedSettingsTable.UNAVAILABLE, value);
+         return value;
+     }
+
+     private void testExportImportForUri(Uri uri, boolean compress) {
+         String key = "testKey1";
+
+         ContentValues contentValue = new ContentValues();
+         contentValue.put(Settings.NameValueTable.NAME, key);
+         contentValue.put(Settings.NameValueTable.VALUE, "value1");
+         mContentResolver.insert(uri, contentValue);
+
+         Cursor queryCursor = null;
+         try {
+             Bundle args = new Bundle();
+             args.putBoolean(CMSettings.CALL_METHOD_COMPRESS_KEY, compress);
+             Bundle exported = mContentResolver.call(uri, CMSettings.CALL_METHOD_EXPORT_SETTINGS,
+                     null, args);
+             byte[] image = exported.getByteArray(CMSettings.CALL_METHOD_IMAGE_KEY);
+             assertNotNull(image);
+
+             // change the value, then restore it from the image
+             contentValue.put(Settings.NameValueTable.VALUE, "value2");
+             mContentResolver.insert(uri, contentValue);
+
+             args = new Bundle();
+             args.putByteArray(CMSettings.CALL_METHOD_IMAGE_KEY, image);
+             Bundle imported = mContentResolver.call(uri, CMSettings.CALL_METHOD_IMPORT_SETTINGS,
+                     null, args);
+             assertTrue(imported.getInt(CMSettings.CALL_METHOD_ROWS_KEY) > 0);
+
+             queryCursor = mContentResolver.query(uri, PROJECTIONS, Settings.NameValueTable.NAME +
+                     " = ?", new String[]{ key }, null);
+             assertEquals(1, queryCursor.getCount());
+             assertExpectedKeyValuePair(queryCursor, key, "value1");
+
+             // a truncated image must be rejected as a whole
+             args.putByteArray(CMSettings.CALL_METHOD_IMAGE_KEY,
+                     Arrays.copyOf(image, image.length - 1));
+             try {
+                 mContentResolver.call(uri, CMSettings.CALL_METHOD_IMPORT_SETTINGS, null, args);
+                 fail("Truncated settings image was imported");
+             } catch (IllegalArgumentException e) {
+                 // expected
+             }
+         } finally {
+             if (queryCursor != null) {
+                 queryCursor.close();
+             }
+             mContentResolver.delete(uri, Settings.NameValueTable.NAME + " = ?",
+                     new String[]{ key });
+         }
+     }
+
      private void assertExpectedKeyValuePair(Cursor cursor, String expectedKey,
             String expectedValue) {
          cursor.moveToNext();
@@ -21,10 +21,13 @@ import android.media.AudioManager;
 import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.policy.IKeyguardService;
 import cyanogenmod.os.Build;
@@ -49,6 +52,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class that represents a device profile.
@@ -77,6 +82,9 @@ public final class Profile implements Parcelable, Comparable {
 
     private static final String TAG = "Profile";
 
+    // How long applying a profile waits for the radios before changing airplane mode
+    private static final long CONNECTION_TIMEOUT_MS = 5000;
+
     private int mProfileType;
 
     private Map<Integer, StreamSettings> streams = new HashMap<Integer, StreamSettings>();
@@ -1228,38 +1236,75 @@ public final class Profile implements Parcelable, Comparable {
         return profile;
     }
 
+    /**
+     * Runs the connection overrides of a profile, which block on their services.
+     * @hide
+     */
+    public interface ConnectionExecutor {
+        /**
+         * Runs a task toggling a radio. Tasks for the same radio must run one at a time, in
+         * the order they were passed, including those of profiles applied earlier.
+         * @param radio The connection id of the radio, see {@link ConnectionSettings}
+         */
+        void execute(int radio, Runnable task);
+    }
+
+    // Applies connection overrides on the calling thread
+    private static final ConnectionExecutor DIRECT_CONNECTION_EXECUTOR =
+            new ConnectionExecutor() {
+        @Override
+        public void execute(int radio, Runnable task) {
+            task.run();
+        }
+    };
+
     /** @hide */
     public void doSelect(Context context, IKeyguardService keyguardService) {
+        doSelect(context, keyguardService, null, DIRECT_CONNECTION_EXECUTOR);
+    }
+
+    /**
+     * Applies the overrides of this profile, skipping those the device already matches.
+     * Connections that don't share a radio are toggled in parallel if the executor allows it,
+     * since they block on their services.
+     * @param stepTimesMs If not null, receives the time each step took in milliseconds,
+     *     keyed by step name. Written under its own lock.
+     * @param connectionExecutor Runs the connection overrides, grouped by radio.
+     * @hide
+     */
+    public void doSelect(Context context, IKeyguardService keyguardService,
+            Map<String, Long> stepTimesMs, ConnectionExecutor connectionExecutor) {
+        final long startMs = SystemClock.elapsedRealtime();
+
+        // Set connections, in the background while the rest is applied
+        final CountDownLatch connectionsDone = startConnectionOverrides(context, stepTimesMs,
+                connectionExecutor);
+
         // Set stream volumes
+        long stepStartMs = SystemClock.elapsedRealtime();
         AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         for (StreamSettings sd : streams.values()) {
-            if (sd.isOverride()) {
+            if (sd.isOverride() && am.getStreamVolume(sd.getStreamId()) != sd.getValue()) {
                 am.setStreamVolume(sd.getStreamId(), sd.getValue(), 0);
             }
         }
-        // Set connections
-        for (ConnectionSettings cs : connections.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
-        }
-        for (ConnectionSettings cs : networkConnectionSubIds.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
-        }
+        recordStep(stepTimesMs, "streams", stepStartMs);
 
         // Set ring mode
+        stepStartMs = SystemClock.elapsedRealtime();
         mRingMode.processOverride(context);
-        // Set airplane mode
-        mAirplaneMode.processOverride(context);
+        recordStep(stepTimesMs, "ringMode", stepStartMs);
 
         // Set brightness
+        stepStartMs = SystemClock.elapsedRealtime();
         mBrightness.processOverride(context);
+        recordStep(stepTimesMs, "brightness", stepStartMs);
 
         if (keyguardService != null) {
             // Set lock screen mode
+            stepStartMs = SystemClock.elapsedRealtime();
             mScreenLockMode.processOverride(context, keyguardService);
+            recordStep(stepTimesMs, "screenLock", stepStartMs);
         } else {
             Log.e(TAG, "cannot process screen lock override without a keyguard service.");
         }
@@ -1274,18 +1319,121 @@ public final class Profile implements Parcelable, Comparable {
 
         // Set doze mode
         if (mDozeMode != DozeMode.DEFAULT) {
-            Settings.Secure.putIntForUser(context.getContentResolver(),
-                Settings.Secure.DOZE_ENABLED,
-                    mDozeMode == DozeMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
+            final int dozeEnabled = mDozeMode == DozeMode.ENABLE ? 1 : 0;
+            if (Settings.Secure.getIntForUser(context.getContentResolver(),
+                    Settings.Secure.DOZE_ENABLED, -1, UserHandle.USER_CURRENT) != dozeEnabled) {
+                Settings.Secure.putIntForUser(context.getContentResolver(),
+                        Settings.Secure.DOZE_ENABLED, dozeEnabled, UserHandle.USER_CURRENT);
+            }
         }
 
         // Set notification light mode
         if (mNotificationLightMode != NotificationLightMode.DEFAULT) {
-            Settings.System.putIntForUser(context.getContentResolver(),
-                Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
+            final int lightPulse = mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0;
+            if (Settings.System.getIntForUser(context.getContentResolver(),
+                    Settings.System.NOTIFICATION_LIGHT_PULSE, -1, UserHandle.USER_CURRENT)
+                    != lightPulse) {
+                Settings.System.putIntForUser(context.getContentResolver(),
+                        Settings.System.NOTIFICATION_LIGHT_PULSE, lightPulse,
+                        UserHandle.USER_CURRENT);
+            }
+        }
+
+        // Set airplane mode, once the radios are done since it turns them off
+        try {
+            if (!connectionsDone.await(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Connection overrides still running after "
+                        + CONNECTION_TIMEOUT_MS + "ms");
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for connection overrides", e);
+        }
+        stepStartMs = SystemClock.elapsedRealtime();
+        mAirplaneMode.processOverride(context);
+        recordStep(stepTimesMs, "airplaneMode", stepStartMs);
+
+        recordStep(stepTimesMs, "total", startMs);
+    }
+
+    /**
+     * Starts applying the connection overrides. Connections sharing a radio are applied in
+     * order by a single task.
+     * @return A latch released once every override was applied.
+     */
+    private CountDownLatch startConnectionOverrides(final Context context,
+            final Map<String, Long> stepTimesMs, ConnectionExecutor executor) {
+        final SparseArray<ArrayList<ConnectionSettings>> byRadio =
+                new SparseArray<ArrayList<ConnectionSettings>>();
+        addConnectionOverrides(connections.values(), byRadio);
+        addConnectionOverrides(networkConnectionSubIds.values(), byRadio);
+
+        final CountDownLatch done = new CountDownLatch(byRadio.size());
+        for (int i = 0; i < byRadio.size(); i++) {
+            final ArrayList<ConnectionSettings> overrides = byRadio.valueAt(i);
+            executor.execute(byRadio.keyAt(i), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (ConnectionSettings cs : overrides) {
+                            final long stepStartMs = SystemClock.elapsedRealtime();
+                            cs.processOverride(context);
+                            recordStep(stepTimesMs, getStepName(cs), stepStartMs);
+                        }
+                    } catch (RuntimeException e) {
+                        // Don't take the process down with an executor thread
+                        Log.e(TAG, "Error applying connection overrides", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        return done;
+    }
+
+    private static void addConnectionOverrides(Collection<ConnectionSettings> settings,
+            SparseArray<ArrayList<ConnectionSettings>> byRadio) {
+        for (ConnectionSettings cs : settings) {
+            if (!cs.isOverride()) {
+                continue;
+            }
+            final int radio = getRadio(cs.getConnectionId());
+            ArrayList<ConnectionSettings> overrides = byRadio.get(radio);
+            if (overrides == null) {
+                overrides = new ArrayList<ConnectionSettings>();
+                byRadio.put(radio, overrides);
+            }
+            overrides.add(cs);
+        }
+    }
+
+    /**
+     * @return The connection whose radio a connection shares, or the connection itself.
+     */
+    private static int getRadio(int connectionId) {
+        switch (connectionId) {
+            case ConnectionSettings.PROFILE_CONNECTION_WIFIAP:
+                // Tethering turns WiFi off and the other way round
+                return ConnectionSettings.PROFILE_CONNECTION_WIFI;
+            case ConnectionSettings.PROFILE_CONNECTION_2G3G4G:
+                return ConnectionSettings.PROFILE_CONNECTION_MOBILEDATA;
+            default:
+                return connectionId;
+        }
+    }
+
+    private static String getStepName(ConnectionSettings cs) {
+        final String name = "connection " + cs.getConnectionId();
+        return cs.getSubId() == SubscriptionManager.INVALID_SUBSCRIPTION_ID
+                ? name : name + " sub " + cs.getSubId();
+    }
+
+    private static void recordStep(Map<String, Long> stepTimesMs, String step, long startMs) {
+        if (stepTimesMs != null) {
+            final long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+            synchronized (stepTimesMs) {
+                stepTimesMs.put(step, elapsedMs);
+            }
         }
     }
 
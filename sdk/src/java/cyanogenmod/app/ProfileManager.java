@@ -26,8 +26,10 @@ import android.os.IBinder;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import cyanogenmod.app.IProfileChangeListener;
 import cyanogenmod.app.IProfileManager;
 
 import com.android.internal.R;
@@ -236,6 +238,84 @@ public class ProfileManager {
     public static final int PROFILES_STATE_ENABLED = 1;
 
     private static ProfileManager sProfileManagerInstance;
+
+    // Lookups made on the notification path, dropped whenever the service reports a change.
+    // Guarded by mCacheLock.
+    private final Object mCacheLock = new Object();
+    private boolean mChangeListenerRegistered;
+    // Bumped on every change, so lookups racing with one don't cache their stale result
+    private int mCacheSerial;
+    private final ArrayMap<String, NotificationGroup> mGroupsByPackage =
+            new ArrayMap<String, NotificationGroup>();
+    private Profile mCachedActiveProfile;
+
+    // Everything the getters return, for processes that opted in with setCachingEnabled.
+    // Guarded by mCacheLock.
+    private boolean mCachingEnabled;
+    private Snapshot mSnapshot;
+
+    // How often a snapshot is fetched again if the profiles change while it is fetched
+    private static final int SNAPSHOT_ATTEMPTS = 3;
+
+    private static final class Snapshot {
+        final long generation;
+        final Profile activeProfile;
+        // Sorted, like the service returns them
+        final Profile[] profiles;
+        final ArrayMap<UUID, Profile> profilesByUuid;
+        final NotificationGroup[] groups;
+
+        Snapshot(long generation, Profile activeProfile, Profile[] profiles,
+                NotificationGroup[] groups) {
+            this.generation = generation;
+            this.activeProfile = activeProfile;
+            this.profiles = profiles;
+            this.groups = groups;
+            profilesByUuid = new ArrayMap<UUID, Profile>(profiles.length);
+            for (Profile profile : profiles) {
+                profilesByUuid.put(profile.getUuid(), profile);
+            }
+        }
+
+        Profile getProfile(UUID uuid) {
+            final Profile profile = profilesByUuid.get(uuid);
+            if (profile != null) {
+                return profile;
+            }
+            // Like the service, fall back to secondary UUIDs
+            for (Profile p : profiles) {
+                for (UUID secondaryUuid : p.getSecondaryUuids()) {
+                    if (uuid.equals(secondaryUuid)) {
+                        return p;
+                    }
+                }
+            }
+            return null;
+        }
+
+        Profile getProfileByName(String name) {
+            for (Profile profile : profiles) {
+                if (profile.getName().equals(name)) {
+                    return profile;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final IProfileChangeListener mChangeListener = new IProfileChangeListener.Stub() {
+        @Override
+        public void onProfilesChanged(long generation) {
+            synchronized (mCacheLock) {
+                invalidateLookupsLocked();
+                if (mSnapshot != null && mSnapshot.generation < generation) {
+                    // Fetched again on the next read
+                    mSnapshot = null;
+                }
+            }
+        }
+    };
+
     private ProfileManager(Context context) {
         Context appContext = context.getApplicationContext();
         if (appContext != null) {
@@ -285,6 +365,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -297,6 +378,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -304,6 +386,10 @@ public class ProfileManager {
      * @return active {@link Profile}
      */
     public Profile getActiveProfile() {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.activeProfile;
+        }
         try {
             return getService().getActiveProfile();
         } catch (RemoteException e) {
@@ -322,6 +408,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -334,6 +421,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -346,6 +434,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -357,6 +446,18 @@ public class ProfileManager {
      */
     @Deprecated
     public Profile getProfile(String profileName) {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            final Profile profile = snapshot.getProfileByName(profileName);
+            if (profile != null) {
+                return profile;
+            }
+            try {
+                return snapshot.profilesByUuid.get(UUID.fromString(profileName));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
         try {
             return getService().getProfileByName(profileName);
         } catch (RemoteException e) {
@@ -371,6 +472,10 @@ public class ProfileManager {
      * @return {@link Profile}
      */
     public Profile getProfile(UUID profileUuid) {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.getProfile(profileUuid);
+        }
         try {
             return getService().getProfile(new ParcelUuid(profileUuid));
         } catch (RemoteException e) {
@@ -384,11 +489,20 @@ public class ProfileManager {
      * @return {@link String[]} of profile names
      */
     public String[] getProfileNames() {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            String[] names = new String[snapshot.profiles.length];
+            for (int i = 0; i < snapshot.profiles.length; i++) {
+                names[i] = snapshot.profiles[i].getName();
+            }
+            return names;
+        }
         try {
-            Profile[] profiles = getService().getProfiles();
-            String[] names = new String[profiles.length];
-            for (int i = 0; i < profiles.length; i++) {
-                names[i] = profiles[i].getName();
+            // Summaries are much smaller than full profiles
+            ProfileSummary[] summaries = getService().getProfileSummaries();
+            String[] names = new String[summaries.length];
+            for (int i = 0; i < summaries.length; i++) {
+                names[i] = summaries[i].getName();
             }
             return names;
         } catch (RemoteException e) {
@@ -397,11 +511,64 @@ public class ProfileManager {
         return null;
     }
 
+    /**
+     * Get summaries of the {@link Profile}s currently available to the user, which are much
+     * cheaper to fetch than the profiles themselves
+     * @return {@link ProfileSummary[]}, sorted like {@link #getProfiles}
+     * @hide
+     */
+    public ProfileSummary[] getProfileSummaries() {
+        try {
+            return getService().getProfileSummaries();
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Get the generation of the {@link Profile}s, which changes whenever they or the active
+     * profile change
+     * @return the current generation
+     * @hide
+     */
+    public long getGeneration() {
+        try {
+            return getService().getGeneration();
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return -1;
+    }
+
+    /**
+     * Get one page of the summaries of the {@link Profile}s currently available to the user
+     * @param offset the index of the first summary, in the order of {@link #getProfiles}
+     * @param limit the maximum number of summaries to return
+     * @param generation the {@link #getGeneration generation} the pages are read at
+     * @return {@link ProfileSummary[]}, empty past the last profile
+     * @throws IllegalStateException if the profiles changed since {@code generation}, so the
+     *     page may not line up with earlier ones
+     * @hide
+     */
+    public ProfileSummary[] getProfileSummaries(int offset, int limit, long generation) {
+        try {
+            return getService().getProfileSummariesPaged(offset, limit, generation);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
     /**
      * Get the {@link Profile}s currently available to the user
      * @return {@link Profile[]}
      */
     public Profile[] getProfiles() {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.profiles.clone();
+        }
         try {
             return getService().getProfiles();
         } catch (RemoteException e) {
@@ -416,6 +583,15 @@ public class ProfileManager {
      * @return whether or not the profile exists
      */
     public boolean profileExists(String profileName) {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            for (Profile profile : snapshot.profiles) {
+                if (profile.getName().equalsIgnoreCase(profileName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
         try {
             return getService().profileExistsByName(profileName);
         } catch (RemoteException e) {
@@ -432,6 +608,10 @@ public class ProfileManager {
      * @return whether or not the profile exists
      */
     public boolean profileExists(UUID profileUuid) {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.profilesByUuid.containsKey(profileUuid);
+        }
         try {
             return getService().profileExists(new ParcelUuid(profileUuid));
         } catch (RemoteException e) {
@@ -465,6 +645,10 @@ public class ProfileManager {
      * @hide
      */
     public NotificationGroup[] getNotificationGroups() {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot != null) {
+            return snapshot.groups.clone();
+        }
         try {
             return getService().getNotificationGroups();
         } catch (RemoteException e) {
@@ -484,6 +668,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -497,6 +682,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -510,6 +696,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -518,8 +705,23 @@ public class ProfileManager {
      * @hide
      */
     public NotificationGroup getNotificationGroupForPackage(String pkg) {
+        final boolean cacheable;
+        final int serial;
+        synchronized (mCacheLock) {
+            if (mGroupsByPackage.containsKey(pkg)) {
+                return mGroupsByPackage.get(pkg);
+            }
+            cacheable = ensureChangeListenerLocked();
+            serial = mCacheSerial;
+        }
         try {
-            return getService().getNotificationGroupForPackage(pkg);
+            final NotificationGroup group = getService().getNotificationGroupForPackage(pkg);
+            synchronized (mCacheLock) {
+                if (cacheable && serial == mCacheSerial) {
+                    mGroupsByPackage.put(pkg, group);
+                }
+            }
+            return group;
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -548,11 +750,142 @@ public class ProfileManager {
      */
     public ProfileGroup getActiveProfileGroup(String packageName) {
         NotificationGroup notificationGroup = getNotificationGroupForPackage(packageName);
+        Profile activeProfile = getCachedActiveProfile();
+        if (activeProfile == null) {
+            return null;
+        }
         if (notificationGroup == null) {
-            ProfileGroup defaultGroup = getActiveProfile().getDefaultGroup();
+            ProfileGroup defaultGroup = activeProfile.getDefaultGroup();
             return defaultGroup;
         }
-        return getActiveProfile().getProfileGroup(notificationGroup.getUuid());
+        return activeProfile.getProfileGroup(notificationGroup.getUuid());
+    }
+
+    /**
+     * Like {@link #getActiveProfile}, but kept until the service reports a change. Callers
+     * must not modify the result.
+     */
+    private Profile getCachedActiveProfile() {
+        final boolean cacheable;
+        final int serial;
+        synchronized (mCacheLock) {
+            if (mCachedActiveProfile != null) {
+                return mCachedActiveProfile;
+            }
+            cacheable = ensureChangeListenerLocked();
+            serial = mCacheSerial;
+        }
+        final Profile profile = getActiveProfile();
+        if (profile != null) {
+            synchronized (mCacheLock) {
+                if (cacheable && serial == mCacheSerial) {
+                    mCachedActiveProfile = profile;
+                }
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Enables or disables caching for the getters of this process. When enabled, the first
+     * read after a change fetches all profiles, the notification groups and the active
+     * profile as a snapshot, and later reads are served from it without a binder call until
+     * the next change is made through this manager or reported by the service. This suits
+     * processes that read profiles often and rarely change them.
+     *
+     * <p>The profiles and groups of a snapshot are shared by all callers and must not be
+     * modified; fetch a profile with caching disabled to edit it.</p>
+     * @param enabled Whether to cache.
+     * @hide
+     */
+    public void setCachingEnabled(boolean enabled) {
+        synchronized (mCacheLock) {
+            mCachingEnabled = enabled;
+            if (!enabled) {
+                mSnapshot = null;
+            }
+        }
+    }
+
+    /**
+     * @return The current snapshot, fetching it first if needed, or null if caching is
+     *     disabled or the snapshot can't be fetched right now.
+     */
+    private Snapshot getSnapshot() {
+        final int serial;
+        synchronized (mCacheLock) {
+            if (!mCachingEnabled) {
+                return null;
+            }
+            if (mSnapshot != null) {
+                return mSnapshot;
+            }
+            if (!ensureChangeListenerLocked()) {
+                return null;
+            }
+            serial = mCacheSerial;
+        }
+
+        try {
+            final IProfileManager service = getService();
+            long generation = service.getGeneration();
+            for (int i = 0; i < SNAPSHOT_ATTEMPTS; i++) {
+                final Profile[] profiles = service.getProfiles();
+                final Profile activeProfile = service.getActiveProfile();
+                final NotificationGroup[] groups = service.getNotificationGroups();
+                final long newGeneration = service.getGeneration();
+                if (newGeneration != generation) {
+                    // Changed while fetching, the parts may not match
+                    generation = newGeneration;
+                    continue;
+                }
+
+                final Snapshot snapshot = new Snapshot(generation, activeProfile, profiles,
+                        groups);
+                synchronized (mCacheLock) {
+                    if (mCachingEnabled && serial == mCacheSerial) {
+                        mSnapshot = snapshot;
+                    }
+                }
+                return snapshot;
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Drops what was cached before a change made through this manager, so the caller reads
+     * its own write even before the service reports the change.
+     */
+    private void invalidateCaches() {
+        synchronized (mCacheLock) {
+            invalidateLookupsLocked();
+            mSnapshot = null;
+        }
+    }
+
+    private void invalidateLookupsLocked() {
+        mCacheSerial++;
+        mGroupsByPackage.clear();
+        mCachedActiveProfile = null;
+    }
+
+    /**
+     * Registers for change callbacks on first use. Callers register before fetching what
+     * they cache, so no change can slip by unnoticed.
+     * @return Whether the listener is registered, so results may be cached.
+     */
+    private boolean ensureChangeListenerLocked() {
+        if (!mChangeListenerRegistered) {
+            try {
+                mChangeListenerRegistered = getService().registerChangeListener(mChangeListener);
+            } catch (RemoteException e) {
+                Log.e(TAG, e.getLocalizedMessage(), e);
+            }
+        }
+        return mChangeListenerRegistered;
     }
 
     /**
@@ -566,6 +899,7 @@ public class ProfileManager {
         } catch (SecurityException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCaches();
     }
 
     /**
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cyanogenmod.app;
+
+import android.os.Parcel;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+
+import cyanogenmod.os.Build;
+import cyanogenmod.os.Concierge;
+import cyanogenmod.os.Concierge.ParcelInfo;
+
+import java.util.UUID;
+
+/**
+ * The few fields of a {@link Profile} that lists of profiles show, without its groups,
+ * streams and connection settings.
+ * @hide
+ */
+public class ProfileSummary implements Parcelable {
+    private UUID mUuid;
+    private String mName;
+    private int mProfileType;
+    private boolean mActive;
+    private int mWifiTriggerCount;
+    private int mBluetoothTriggerCount;
+
+    /**
+     * @param profile The profile to summarize.
+     * @param active Whether the profile is the active one.
+     */
+    public ProfileSummary(Profile profile, boolean active) {
+        mUuid = profile.getUuid();
+        mName = profile.getName();
+        mProfileType = profile.getProfileType();
+        mActive = active;
+        mWifiTriggerCount = profile.getTriggersFromType(Profile.TriggerType.WIFI).size();
+        mBluetoothTriggerCount =
+                profile.getTriggersFromType(Profile.TriggerType.BLUETOOTH).size();
+    }
+
+    private ProfileSummary(Parcel in) {
+        // Read parcelable version via the Concierge
+        ParcelInfo parcelInfo = Concierge.receiveParcel(in);
+        int parcelableVersion = parcelInfo.getParcelVersion();
+
+        if (parcelableVersion >= Build.CM_VERSION_CODES.GUAVA) {
+            mUuid = ParcelUuid.CREATOR.createFromParcel(in).getUuid();
+            mName = in.readString();
+            mProfileType = in.readInt();
+            mActive = in.readInt() != 0;
+            mWifiTriggerCount = in.readInt();
+            mBluetoothTriggerCount = in.readInt();
+        }
+
+        // Complete parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    /**
+     * @return The {@link UUID} of the profile.
+     */
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * @return The name of the profile.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The {@link Profile.Type} of the profile.
+     */
+    public int getProfileType() {
+        return mProfileType;
+    }
+
+    /**
+     * @return Whether the profile was the active one when the summary was made.
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * @param type A {@link Profile.TriggerType}.
+     * @return The number of triggers of that type.
+     */
+    public int getTriggerCount(int type) {
+        switch (type) {
+            case Profile.TriggerType.WIFI:
+                return mWifiTriggerCount;
+            case Profile.TriggerType.BLUETOOTH:
+                return mBluetoothTriggerCount;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        // Tell the concierge to prepare the parcel
+        ParcelInfo parcelInfo = Concierge.prepareParcel(dest);
+
+        new ParcelUuid(mUuid).writeToParcel(dest, 0);
+        dest.writeString(mName);
+        dest.writeInt(mProfileType);
+        dest.writeInt(mActive ? 1 : 0);
+        dest.writeInt(mWifiTriggerCount);
+        dest.writeInt(mBluetoothTriggerCount);
+
+        // Complete the parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    @Override
+    public String toString() {
+        return "ProfileSummary: uuid=" + mUuid + ", name=" + mName + ", type=" + mProfileType
+                + ", active=" + mActive + ", wifiTriggers=" + mWifiTriggerCount
+                + ", bluetoothTriggers=" + mBluetoothTriggerCount;
+    }
+
+    public static final Parcelable.Creator<ProfileSummary> CREATOR =
+            new Parcelable.Creator<ProfileSummary>() {
+        @Override
+        public ProfileSummary createFromParcel(Parcel source) {
+            return new ProfileSummary(source);
+        }
+
+        @Override
+        public ProfileSummary[] newArray(int size) {
+            return new ProfileSummary[size];
+        }
+    };
+}
@@ -53,8 +53,8 @@ public class CMGlobalSettingSwitchPreference extends SelfRemovingSwitchPreferenc
         if (!shouldPersist()) {
             return defaultReturnValue;
         }
-        return CMSettings.Global.getInt(getContext().getContentResolver(),
-                getKey(), defaultReturnValue ? 1 : 0) != 0;
+        return CMSettings.Global.getBoolean(getContext().getContentResolver(),
+                getKey(), defaultReturnValue);
     }
 
     @Override
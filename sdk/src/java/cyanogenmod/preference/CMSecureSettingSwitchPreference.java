@@ -53,8 +53,8 @@ public class CMSecureSettingSwitchPreference extends SelfRemovingSwitchPreferenc
         if (!shouldPersist()) {
             return defaultReturnValue;
         }
-        return CMSettings.Secure.getInt(getContext().getContentResolver(),
-                getKey(), defaultReturnValue ? 1 : 0) != 0;
+        return CMSettings.Secure.getBoolean(getContext().getContentResolver(),
+                getKey(), defaultReturnValue);
     }
 
     @Override
@@ -53,8 +53,8 @@ public class CMSystemSettingSwitchPreference extends SelfRemovingSwitchPreferenc
         if (!shouldPersist()) {
             return defaultReturnValue;
         }
-        return CMSettings.System.getInt(getContext().getContentResolver(),
-                getKey(), defaultReturnValue ? 1 : 0) != 0;
+        return CMSettings.System.getBoolean(getContext().getContentResolver(),
+                getKey(), defaultReturnValue);
     }
 
     @Override
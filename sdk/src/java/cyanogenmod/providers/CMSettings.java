@@ -23,7 +23,9 @@ import android.content.IContentProvider;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -32,15 +34,29 @@ import android.util.AndroidException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.util.ArrayUtils;
 
+import org.cyanogenmod.internal.util.LatencyHistogram;
+import org.cyanogenmod.internal.util.SharedSettingsTable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 /**
@@ -115,6 +131,118 @@ public final class CMSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Names argument extra to the batched call()-based requests
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read several keys from 'system' table.
+     */
+    public static final String CALL_METHOD_GET_SYSTEM_BATCH = "GET_system_batch";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read several keys from 'secure' table.
+     */
+    public static final String CALL_METHOD_GET_SECURE_BATCH = "GET_secure_batch";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read several keys from 'global' table.
+     */
+    public static final String CALL_METHOD_GET_GLOBAL_BATCH = "GET_global_batch";
+
+    /**
+     * @hide - Values argument extra to the batched put call()-based requests
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to write several keys to 'system'
+     * table as one change.
+     */
+    public static final String CALL_METHOD_PUT_SYSTEM_BATCH = "PUT_system_batch";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to write several keys to 'secure'
+     * table as one change.
+     */
+    public static final String CALL_METHOD_PUT_SECURE_BATCH = "PUT_secure_batch";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to write several keys to 'global'
+     * table as one change.
+     */
+    public static final String CALL_METHOD_PUT_GLOBAL_BATCH = "PUT_global_batch";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read the whole 'system' table.
+     */
+    public static final String CALL_METHOD_LIST_SYSTEM = "LIST_system";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read the whole 'secure' table.
+     */
+    public static final String CALL_METHOD_LIST_SECURE = "LIST_secure";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read the whole 'global' table.
+     */
+    public static final String CALL_METHOD_LIST_GLOBAL = "LIST_global";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read the name bucket generations
+     * of the 'system' table.
+     */
+    public static final String CALL_METHOD_GENERATIONS_SYSTEM = "GENERATIONS_system";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read the name bucket generations
+     * of the 'secure' table.
+     */
+    public static final String CALL_METHOD_GENERATIONS_SECURE = "GENERATIONS_secure";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read the name bucket generations
+     * of the 'global' table.
+     */
+    public static final String CALL_METHOD_GENERATIONS_GLOBAL = "GENERATIONS_global";
+
+    /**
+     * @hide - Provider instance extra in the generations call() response
+     */
+    public static final String CALL_METHOD_EPOCH_KEY = "_epoch";
+
+    /**
+     * @hide - Table version extra in the generations call() response
+     */
+    public static final String CALL_METHOD_VERSION_KEY = "_version";
+
+    /**
+     * @hide - Name bucket generations extra in the generations call() response
+     */
+    public static final String CALL_METHOD_GENERATIONS_KEY = "_generations";
+
+    /**
+     * @hide - Ids of the users removed since the provider started, extra in the generations
+     * call() response
+     */
+    public static final String CALL_METHOD_REMOVED_USERS_KEY = "_removed_users";
+
+    /**
+     * @hide - Number of name buckets that have their own generation number
+     */
+    public static final int GENERATION_BUCKET_COUNT = 64;
+
+    /**
+     * Returns the generation bucket that a setting name is tracked in.
+     * @param name The name of the setting.
+     * @return A bucket index between 0 and {@link #GENERATION_BUCKET_COUNT} - 1.
+     * @hide
+     */
+    public static int getGenerationBucket(String name) {
+        return (name.hashCode() & 0x7fffffff) % GENERATION_BUCKET_COUNT;
+    }
+
     /**
      * @hide - Private call() method on CMSettingsProvider to migrate CM settings
      */
@@ -125,8 +253,122 @@ public final class CMSettings {
      */
     public static final String CALL_METHOD_MIGRATE_SETTINGS_FOR_USER = "migrate_settings_for_user";
 
+    /**
+     * @hide - Private call() method on CMSettingsProvider to export the 'system', 'secure' and
+     * 'global' tables of a user as a single binary image. The 'global' table is only part of
+     * the owner's image.
+     */
+    public static final String CALL_METHOD_EXPORT_SETTINGS = "EXPORT_settings";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to validate a binary image made by
+     * {@link #CALL_METHOD_EXPORT_SETTINGS} and write it to the tables of a user in a single
+     * transaction.
+     */
+    public static final String CALL_METHOD_IMPORT_SETTINGS = "IMPORT_settings";
+
+    /**
+     * @hide - Binary image extra in the export call() response and the import call() request
+     */
+    public static final String CALL_METHOD_IMAGE_KEY = "_image";
+
+    /**
+     * @hide - Boolean argument extra to the export call() to request a compressed image
+     */
+    public static final String CALL_METHOD_COMPRESS_KEY = "_compress";
+
+    /**
+     * @hide - Number of imported rows extra in the import call() response
+     */
+    public static final String CALL_METHOD_ROWS_KEY = "_rows";
+
     // endregion
 
+    // Whether the name/value caches should fetch whole tables when their version changes.
+    private static volatile boolean sPrefetchEnabled = false;
+
+    /**
+     * Enables or disables full-table prefetching for the name/value caches of this process.
+     * When enabled, the first read of a table after its version changes pulls the whole table
+     * with a single provider call and publishes it as an immutable snapshot, so later reads
+     * never go over binder or take the cache lock until the next change. This suits processes
+     * that read many settings and rarely write them.
+     * @param enabled Whether to prefetch whole tables.
+     * @hide
+     */
+    public static void setPrefetchEnabled(boolean enabled) {
+        sPrefetchEnabled = enabled;
+    }
+
+    // Whether the name/value caches should read the provider's shared memory snapshots.
+    private static volatile boolean sSharedSnapshotEnabled = false;
+
+    /**
+     * Enables or disables reading the shared memory snapshots of the CM settings provider in
+     * the name/value caches of this process. When enabled, reads of the calling user's
+     * settings that miss the cache are served from a read-only mapping of the provider's copy
+     * of the table, and version changes clear the cache without a provider call. Reads fall
+     * back to the provider whenever the snapshot is behind or being rewritten.
+     * @param enabled Whether to read the shared snapshots.
+     * @hide
+     */
+    public static void setSharedSnapshotEnabled(boolean enabled) {
+        sSharedSnapshotEnabled = enabled;
+    }
+
+    // Set to true to count cache accesses from process start, e.g. to measure boot.
+    private static final String STATS_ENABLED_PROPERTY = "debug.cmsettings.stats";
+
+    // Whether the name/value caches should count their accesses. Counting costs a shared
+    // atomic increment on every read, so it is off unless enabled through
+    // STATS_ENABLED_PROPERTY or setStatsEnabled().
+    private static volatile boolean sStatsEnabled =
+            SystemProperties.getBoolean(STATS_ENABLED_PROPERTY, false);
+
+    /**
+     * Enables or disables access statistics for the name/value caches of this process.
+     * @param enabled Whether to count cache accesses.
+     * @hide
+     */
+    public static void setStatsEnabled(boolean enabled) {
+        sStatsEnabled = enabled;
+    }
+
+    /**
+     * Prints the access statistics of the name/value caches of this process: cache hits and
+     * misses, invalidations, reads through the call() fast path versus the query() fallback,
+     * and provider round-trip latencies.
+     * @param pw The writer to print to.
+     * @hide
+     */
+    public static void dumpStats(PrintWriter pw) {
+        pw.println("CMSettings cache stats" + (sStatsEnabled ? ":" : " (disabled):"));
+        System.sNameValueCache.dumpStats(pw, "  ");
+        Secure.sNameValueCache.dumpStats(pw, "  ");
+        Global.sNameValueCache.dumpStats(pw, "  ");
+    }
+
+    /**
+     * Resets the access statistics of the name/value caches of this process.
+     * @hide
+     */
+    public static void resetStats() {
+        System.sNameValueCache.mStats.reset();
+        Secure.sNameValueCache.mStats.reset();
+        Global.sNameValueCache.mStats.reset();
+    }
+
+    /**
+     * Returns whether the name/value caches of this process hold values of a user.
+     * @param userId The id of the user.
+     * @hide
+     */
+    public static boolean isUserCached(int userId) {
+        return System.sNameValueCache.hasUserCache(userId)
+                || Secure.sNameValueCache.hasUserCache(userId)
+                || Global.sNameValueCache.hasUserCache(userId);
+    }
+
     // Thread-safe.
     private static class NameValueCache {
         private final String mVersionSystemProperty;
@@ -136,9 +378,44 @@ public final class CMSettings {
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // Stands in for null values in UserCache.values, since ConcurrentHashMap can't hold
+        // nulls. Compared by identity.
+        private static final String NULL_VALUE = new String("null");
+
+        /**
+         * Cached values of a single user. Readers access values and version without locking.
+         * Writers must synchronize on the UserCache to modify any of its fields, and must
+         * finish dropping stale values before publishing a new version.
+         */
+        private static final class UserCache {
+            final int userId;
+            final ConcurrentHashMap<String, String> values =
+                    new ConcurrentHashMap<String, String>();
+            volatile long version = 0;
+
+            // Parsed forms of values, each valid while values holds the same string instance.
+            final ConcurrentHashMap<String, ParsedValue> parsed =
+                    new ConcurrentHashMap<String, ParsedValue>();
+
+            // Name bucket generations matching version, and the provider instance they came
+            // from. Null until the provider has answered a generations request.
+            long[] generations = null;
+            long epoch = 0;
+
+            UserCache(int userId) {
+                this.userId = userId;
+            }
+        }
+
+        // Cache for the user this process runs as.
+        private final UserCache mSelfCache = new UserCache(UserHandle.myUserId());
+
+        // Caches for other users, created on their first read. The provider bumps the table
+        // versions when a user is removed, so a reused user id never sees the old user's
+        // values, and lists the removed users with the generations read on the next
+        // invalidation, which evicts their caches.
+        private final ConcurrentHashMap<Integer, UserCache> mUserCaches =
+                new ConcurrentHashMap<Integer, UserCache>();
 
         // Initially null; set lazily and held forever.  Synchronized on 'this'.
         private IContentProvider mContentProvider = null;
@@ -147,13 +424,117 @@ public final class CMSettings {
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallGetBatchCommand;
+        private final String mCallSetBatchCommand;
+        private final String mCallListCommand;
+        private final String mCallGenerationsCommand;
+
+        // Whole-table snapshot of our own user, used when prefetching is enabled. Published
+        // atomically and never modified, so readers don't need to synchronize. Refills are
+        // serialized by mPrefetchLock, which readers only ever try to acquire.
+        private volatile TableSnapshot mSnapshot;
+        private final ReentrantLock mPrefetchLock = new ReentrantLock();
+
+        // Read-only mapping of the provider's snapshot of our own user's table, used when
+        // shared snapshots are enabled. Mapped on first use and again once the provider
+        // retires it. Mapping is serialized by mSharedTableLock, which readers only ever try
+        // to acquire.
+        private volatile ByteBuffer mSharedTable;
+        private volatile boolean mSharedTableUnsupported = false;
+        private final ReentrantLock mSharedTableLock = new ReentrantLock();
+
+        private final CacheStats mStats = new CacheStats();
+
+        /**
+         * Access counters of a name/value cache. Only updated while sStatsEnabled is set.
+         */
+        private static final class CacheStats {
+            final AtomicLong hits = new AtomicLong();
+            final AtomicLong prefetchHits = new AtomicLong();
+            final AtomicLong sharedHits = new AtomicLong();
+            final AtomicLong parses = new AtomicLong();
+            final AtomicLong misses = new AtomicLong();
+            final AtomicLong invalidations = new AtomicLong();
+            final AtomicLong fullInvalidations = new AtomicLong();
+            final AtomicLong callReads = new AtomicLong();
+            final AtomicLong batchReads = new AtomicLong();
+            final AtomicLong queryReads = new AtomicLong();
+            final LatencyHistogram callLatency = new LatencyHistogram();
+            final LatencyHistogram queryLatency = new LatencyHistogram();
+
+            void reset() {
+                hits.set(0);
+                prefetchHits.set(0);
+                sharedHits.set(0);
+                parses.set(0);
+                misses.set(0);
+                invalidations.set(0);
+                fullInvalidations.set(0);
+                callReads.set(0);
+                batchReads.set(0);
+                queryReads.set(0);
+                callLatency.reset();
+                queryLatency.reset();
+            }
+        }
+
+        /**
+         * A value together with its numeric forms, parsed once. Immutable.
+         */
+        static final class ParsedValue {
+            final String raw;
+            final boolean isInt;
+            final int intValue;
+            final boolean isLong;
+            final long longValue;
+            final boolean isFloat;
+            final float floatValue;
+
+            ParsedValue(String raw) {
+                this.raw = raw;
+                final long intResult = parseInt(raw);
+                isInt = intResult != INVALID_INT;
+                intValue = isInt ? (int) intResult : 0;
+
+                long longResult = intResult;
+                boolean parsedLong = isInt;
+                if (!isInt && raw != null && !raw.isEmpty()) {
+                    try {
+                        longResult = Long.parseLong(raw);
+                        parsedLong = true;
+                    } catch (NumberFormatException e) {
+                        // not a long either
+                    }
+                }
+                isLong = parsedLong;
+                longValue = parsedLong ? longResult : 0;
+
+                isFloat = isParsableFloat(raw);
+                floatValue = isFloat ? Float.parseFloat(raw) : 0;
+            }
+        }
+
+        private static final class TableSnapshot {
+            final long version;
+            final Map<String, String> values;
+
+            TableSnapshot(long version, Map<String, String> values) {
+                this.version = version;
+                this.values = values;
+            }
+        }
 
         public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
+                String getCommand, String setCommand, String getBatchCommand,
+                String setBatchCommand, String listCommand, String generationsCommand) {
             mVersionSystemProperty = versionSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallGetBatchCommand = getBatchCommand;
+            mCallSetBatchCommand = setBatchCommand;
+            mCallListCommand = listCommand;
+            mCallGenerationsCommand = generationsCommand;
         }
 
         private IContentProvider lazyGetProvider(ContentResolver cr) {
@@ -167,6 +548,51 @@ public final class CMSettings {
             return cp;
         }
 
+        /**
+         * Returns the cache for the specified user, creating it if needed.
+         * @param userId The user id of the cache.
+         * @return The cache, or null if reads for this user id can't be cached.
+         */
+        private UserCache getUserCache(int userId) {
+            if (userId == mSelfCache.userId) {
+                return mSelfCache;
+            }
+            if (userId < 0) {
+                // USER_CURRENT and friends resolve to different users over time
+                return null;
+            }
+
+            UserCache cache = mUserCaches.get(userId);
+            if (cache == null) {
+                cache = new UserCache(userId);
+                final UserCache existing = mUserCaches.putIfAbsent(userId, cache);
+                if (existing != null) {
+                    return existing;
+                }
+            }
+            return cache;
+        }
+
+        boolean hasUserCache(int userId) {
+            return userId == mSelfCache.userId || mUserCaches.containsKey(userId);
+        }
+
+        /**
+         * Drops the caches of users the provider reported as removed.
+         * @param userIds The ids of the removed users, or null if there are none.
+         */
+        private void evictRemovedUsers(int[] userIds) {
+            if (userIds == null) {
+                return;
+            }
+            for (int userId : userIds) {
+                if (mUserCaches.remove(userId) != null && LOCAL_LOGV) {
+                    Log.v(TAG, "evicted [" + mUri.getLastPathSegment() + "] cache of removed"
+                            + " user " + userId);
+                }
+            }
+        }
+
         /**
          * Puts a string name/value pair into the content provider for the specified user.
          * @param cr The content resolver to use.
@@ -187,6 +613,61 @@ public final class CMSettings {
                 Log.w(TAG, "Can't set key " + name + " in " + mUri, e);
                 return false;
             }
+
+            // The provider may bump the table version only once it has persisted the value,
+            // so make our own write visible to this process right away.
+            final UserCache cache = getUserCache(userId);
+            if (cache != null) {
+                synchronized (cache) {
+                    cache.values.put(name, value == null ? NULL_VALUE : value);
+                }
+                if (cache == mSelfCache) {
+                    mSnapshot = null;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Puts several string name/value pairs into the content provider for the specified
+         * user with a single call. The provider applies them as one change, so caches are
+         * invalidated and observers notified once for all of them.
+         * @param cr The content resolver to use.
+         * @param names The names of the keys to put into the content provider.
+         * @param values The values to put, in the same order as {@code names}.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, String[] names, String[] values,
+                final int userId) {
+            if (names.length != values.length) {
+                throw new IllegalArgumentException("Got " + names.length + " names for "
+                        + values.length + " values");
+            }
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, values);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), mCallSetBatchCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set " + names.length + " keys in " + mUri, e);
+                return false;
+            }
+
+            // As in putStringForUser, make our own writes visible to this process right away.
+            final UserCache cache = getUserCache(userId);
+            if (cache != null) {
+                synchronized (cache) {
+                    for (int i = 0; i < names.length; i++) {
+                        cache.values.put(names[i], values[i] == null ? NULL_VALUE : values[i]);
+                    }
+                }
+                if (cache == mSelfCache) {
+                    mSnapshot = null;
+                }
+            }
             return true;
         }
 
@@ -201,24 +682,39 @@ public final class CMSettings {
          */
         public String getStringForUser(ContentResolver cr, String name, final int userId) {
             final boolean isSelf = (userId == UserHandle.myUserId());
-            if (isSelf) {
-                if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
-
-                // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
+            final UserCache cache = getUserCache(userId);
+            long newValuesVersion = 0;
+            if (cache != null) {
+                if (LOCAL_LOGV) Log.d(TAG, "get setting for user " + userId);
+                newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+
+                if (isSelf && sPrefetchEnabled) {
+                    TableSnapshot snapshot = getSnapshot(cr, newValuesVersion);
+                    if (snapshot != null) {
+                        if (sStatsEnabled) mStats.prefetchHits.incrementAndGet();
+                        return snapshot.values.get(name);
+                    }
+                    // Another thread is refilling the snapshot; don't wait for it.
+                }
 
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
+                if (cache.version != newValuesVersion) {
+                    if (!isSelf || !invalidateFromSharedTable(cr, cache, newValuesVersion)) {
+                        invalidate(cr, cache, newValuesVersion);
                     }
+                }
+                final String cached = cache.values.get(name);
+                if (cached != null) {
+                    if (sStatsEnabled) mStats.hits.incrementAndGet();
+                    // Could be null, that's OK -- negative caching
+                    return cached == NULL_VALUE ? null : cached;
+                }
 
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
+                if (isSelf && sSharedSnapshotEnabled) {
+                    final String value = readSharedTable(cr, name, newValuesVersion);
+                    if (value != SharedSettingsTable.UNAVAILABLE) {
+                        if (sStatsEnabled) mStats.sharedHits.incrementAndGet();
+                        putIfCurrent(cache, name, value, newValuesVersion);
+                        return value;
                     }
                 }
             } else {
@@ -226,6 +722,9 @@ public final class CMSettings {
                         + " by user " + UserHandle.myUserId() + " so skipping cache");
             }
 
+            final boolean statsEnabled = sStatsEnabled;
+            if (statsEnabled) mStats.misses.incrementAndGet();
+
             IContentProvider cp = lazyGetProvider(cr);
 
             // Try the fast path first, not using query().  If this
@@ -239,18 +738,16 @@ public final class CMSettings {
                         args = new Bundle();
                         args.putInt(CALL_METHOD_USER_KEY, userId);
                     }
+                    final long startNs = statsEnabled ? SystemClock.elapsedRealtimeNanos() : 0;
                     Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
+                    if (statsEnabled) {
+                        mStats.callReads.incrementAndGet();
+                        mStats.callLatency.record(SystemClock.elapsedRealtimeNanos() - startNs);
+                    }
                     if (b != null) {
                         String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
-                        } else {
-                            if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
-                                    + " by " + UserHandle.myUserId()
-                                    + " so not updating cache");
+                        if (cache != null) {
+                            putIfCurrent(cache, name, value, newValuesVersion);
                         }
                         return value;
                     }
@@ -264,16 +761,22 @@ public final class CMSettings {
 
             Cursor c = null;
             try {
+                final long startNs = statsEnabled ? SystemClock.elapsedRealtimeNanos() : 0;
                 c = cp.query(cr.getPackageName(), mUri, SELECT_VALUE, NAME_EQ_PLACEHOLDER,
                         new String[]{name}, null, null);
+                if (statsEnabled) {
+                    mStats.queryReads.incrementAndGet();
+                    mStats.queryLatency.record(SystemClock.elapsedRealtimeNanos() - startNs);
+                }
                 if (c == null) {
                     Log.w(TAG, "Can't get key " + name + " from " + mUri);
                     return null;
                 }
 
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
+                if (isSelf) {
+                    // The query interface always reads the calling user's table
+                    putIfCurrent(cache, name, value, newValuesVersion);
                 }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
@@ -287,6 +790,448 @@ public final class CMSettings {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Gets the string values for several names, using the name/value cache where possible
+         * and resolving every remaining name with a single call into the content provider.
+         * @param cr Content resolver to use for names that are not cached.
+         * @param names The names of the keys to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The string values of the specified keys, in the same order as {@code names}.
+         */
+        public String[] getStringsForUser(ContentResolver cr, String[] names, final int userId) {
+            final String[] values = new String[names.length];
+            final boolean[] resolved = new boolean[names.length];
+            int missCount = names.length;
+
+            final boolean isSelf = (userId == UserHandle.myUserId());
+            final UserCache cache = getUserCache(userId);
+            long newValuesVersion = 0;
+            if (cache != null) {
+                newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+
+                if (isSelf && sPrefetchEnabled) {
+                    TableSnapshot snapshot = getSnapshot(cr, newValuesVersion);
+                    if (snapshot != null) {
+                        for (int i = 0; i < names.length; i++) {
+                            values[i] = snapshot.values.get(names[i]);
+                        }
+                        if (sStatsEnabled) mStats.prefetchHits.addAndGet(names.length);
+                        return values;
+                    }
+                }
+
+                if (cache.version != newValuesVersion) {
+                    if (!isSelf || !invalidateFromSharedTable(cr, cache, newValuesVersion)) {
+                        invalidate(cr, cache, newValuesVersion);
+                    }
+                }
+                for (int i = 0; i < names.length; i++) {
+                    final String cached = cache.values.get(names[i]);
+                    if (cached != null) {
+                        values[i] = cached == NULL_VALUE ? null : cached;
+                        resolved[i] = true;
+                        missCount--;
+                    }
+                }
+
+                if (isSelf && sSharedSnapshotEnabled && missCount > 0) {
+                    for (int i = 0; i < names.length; i++) {
+                        if (resolved[i]) {
+                            continue;
+                        }
+                        final String value = readSharedTable(cr, names[i], newValuesVersion);
+                        if (value == SharedSettingsTable.UNAVAILABLE) {
+                            // Behind or being rewritten, the rest would be too
+                            break;
+                        }
+                        if (sStatsEnabled) mStats.sharedHits.incrementAndGet();
+                        putIfCurrent(cache, names[i], value, newValuesVersion);
+                        values[i] = value;
+                        resolved[i] = true;
+                        missCount--;
+                    }
+                }
+            }
+
+            final boolean statsEnabled = sStatsEnabled;
+            if (statsEnabled) {
+                mStats.hits.addAndGet(names.length - missCount);
+            }
+            if (missCount == 0) {
+                return values;
+            }
+
+            final String[] missingNames = new String[missCount];
+            for (int i = 0, j = 0; i < names.length; i++) {
+                if (!resolved[i]) {
+                    missingNames[j++] = names[i];
+                }
+            }
+
+            Bundle b = null;
+            if (mCallGetBatchCommand != null) {
+                try {
+                    Bundle args = new Bundle();
+                    args.putStringArray(CALL_METHOD_NAMES_KEY, missingNames);
+                    if (!isSelf) {
+                        args.putInt(CALL_METHOD_USER_KEY, userId);
+                    }
+                    IContentProvider cp = lazyGetProvider(cr);
+                    final long startNs = statsEnabled ? SystemClock.elapsedRealtimeNanos() : 0;
+                    b = cp.call(cr.getPackageName(), mCallGetBatchCommand, null, args);
+                    if (statsEnabled) {
+                        mStats.batchReads.incrementAndGet();
+                        mStats.callLatency.record(SystemClock.elapsedRealtimeNanos() - startNs);
+                    }
+                } catch (RemoteException e) {
+                    // Not supported by the remote side?  Fall through
+                    // to the single key path.
+                }
+            }
+
+            if (b == null) {
+                for (int i = 0; i < names.length; i++) {
+                    if (!resolved[i]) {
+                        values[i] = getStringForUser(cr, names[i], userId);
+                    }
+                }
+                return values;
+            }
+
+            for (int i = 0; i < names.length; i++) {
+                if (!resolved[i]) {
+                    values[i] = b.getString(names[i]);
+                }
+            }
+            if (statsEnabled) mStats.misses.addAndGet(missCount);
+            if (cache != null) {
+                synchronized (cache) {
+                    if (cache.version == newValuesVersion) {
+                        for (int i = 0; i < names.length; i++) {
+                            if (!resolved[i]) {
+                                cache.values.put(names[i],
+                                        values[i] == null ? NULL_VALUE : values[i]);
+                            }
+                        }
+                    }
+                }
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "batch cache miss [" + mUri.getLastPathSegment() + "]: "
+                        + missCount + " of " + names.length + " names");
+            }
+            return values;
+        }
+
+        /**
+         * Returns the whole-table snapshot for the specified version, fetching it from the
+         * content provider if the current snapshot is older.
+         * @param cr Content resolver to use if the snapshot needs to be refilled.
+         * @param version The current version of the table.
+         * @return The snapshot, or null if another thread is refilling it or the provider
+         *         does not support listing the table.
+         */
+        private TableSnapshot getSnapshot(ContentResolver cr, long version) {
+            TableSnapshot snapshot = mSnapshot;
+            if (snapshot != null && snapshot.version == version) {
+                return snapshot;
+            }
+            if (mCallListCommand == null || !mPrefetchLock.tryLock()) {
+                return null;
+            }
+            try {
+                snapshot = mSnapshot;
+                if (snapshot != null && snapshot.version == version) {
+                    return snapshot;
+                }
+
+                IContentProvider cp = lazyGetProvider(cr);
+                Bundle b = cp.call(cr.getPackageName(), mCallListCommand, null, null);
+                if (b == null) {
+                    return null;
+                }
+
+                final HashMap<String, String> values = new HashMap<String, String>(b.size());
+                for (String key : b.keySet()) {
+                    values.put(key, b.getString(key));
+                }
+                // Tagged with the version read before the fetch, so a write racing with it
+                // only causes another refill on the next read.
+                snapshot = new TableSnapshot(version, Collections.unmodifiableMap(values));
+                mSnapshot = snapshot;
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "prefetch [" + mUri.getLastPathSegment() + "]: " + values.size()
+                            + " values at version " + version);
+                }
+                return snapshot;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't list " + mUri, e);
+                return null;
+            } finally {
+                mPrefetchLock.unlock();
+            }
+        }
+
+        /**
+         * Looks up a value in the shared memory snapshot of our own user's table, mapping it
+         * first if needed.
+         * @param cr Content resolver to use if the snapshot needs to be mapped.
+         * @param name The name of the key to search for.
+         * @param version The current version of the table.
+         * @return The value, or {@link SharedSettingsTable#UNAVAILABLE} if the snapshot can't
+         *         answer for this version.
+         */
+        private String readSharedTable(ContentResolver cr, String name, long version) {
+            final ByteBuffer table = getSharedTable(cr);
+            return table == null
+                    ? SharedSettingsTable.UNAVAILABLE
+                    : SharedSettingsTable.read(table, name, version);
+        }
+
+        /**
+         * Brings our own user's cache up to date with a new table version without a provider
+         * call, if the shared memory snapshot is already at that version. The snapshot carries
+         * the bucket generations of its version, so only the stale buckets are dropped.
+         * @param cr Content resolver to use if the snapshot needs to be mapped.
+         * @param cache Our own user's cache.
+         * @param newValuesVersion The current version of the table.
+         * @return Whether the cache is up to date.
+         */
+        private boolean invalidateFromSharedTable(ContentResolver cr, UserCache cache,
+                long newValuesVersion) {
+            if (!sSharedSnapshotEnabled) {
+                return false;
+            }
+            final ByteBuffer table = getSharedTable(cr);
+            if (table == null) {
+                return false;
+            }
+            final long[] generations = new long[SharedSettingsTable.GENERATION_COUNT];
+            final long epoch = SharedSettingsTable.readGenerations(table, newValuesVersion,
+                    generations);
+            if (epoch == -1) {
+                return false;
+            }
+            synchronized (cache) {
+                if (cache.version == newValuesVersion) {
+                    // Another thread got here first
+                    return true;
+                }
+                if (sStatsEnabled) mStats.invalidations.incrementAndGet();
+                applyGenerationsLocked(cache, generations, epoch, newValuesVersion);
+            }
+            return true;
+        }
+
+        /**
+         * Returns the mapping of the provider's snapshot of our own user's table, mapping it
+         * if there is none yet or the provider has retired it.
+         * @param cr Content resolver to use to open the snapshot.
+         * @return The mapping, or null if another thread is mapping it or the provider does
+         *         not publish snapshots.
+         */
+        private ByteBuffer getSharedTable(ContentResolver cr) {
+            ByteBuffer table = mSharedTable;
+            if (table != null && !SharedSettingsTable.isRetired(table)) {
+                return table;
+            }
+            if (mSharedTableUnsupported || !mSharedTableLock.tryLock()) {
+                return null;
+            }
+            try {
+                table = mSharedTable;
+                if (table != null && !SharedSettingsTable.isRetired(table)) {
+                    return table;
+                }
+
+                final ParcelFileDescriptor pfd = cr.openFileDescriptor(mUri, "r");
+                try {
+                    final FileChannel channel =
+                            new FileInputStream(pfd.getFileDescriptor()).getChannel();
+                    // The mapping stays valid after the descriptor is closed
+                    table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    pfd.close();
+                }
+                mSharedTable = table;
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "mapped snapshot [" + mUri.getLastPathSegment() + "]: "
+                            + table.capacity() + " bytes");
+                }
+                return table;
+            } catch (IOException e) {
+                // Not published by the remote side?  Don't try again.
+                Log.w(TAG, "Can't map snapshot of " + mUri, e);
+                mSharedTableUnsupported = true;
+                return null;
+            } catch (SecurityException e) {
+                Log.w(TAG, "Can't map snapshot of " + mUri, e);
+                mSharedTableUnsupported = true;
+                return null;
+            } finally {
+                mSharedTableLock.unlock();
+            }
+        }
+
+        void dumpStats(PrintWriter pw, String prefix) {
+            pw.print(prefix);
+            pw.print(mUri.getLastPathSegment());
+            pw.print(": hits=");
+            pw.print(mStats.hits.get());
+            pw.print(" prefetchHits=");
+            pw.print(mStats.prefetchHits.get());
+            pw.print(" sharedHits=");
+            pw.print(mStats.sharedHits.get());
+            pw.print(" misses=");
+            pw.print(mStats.misses.get());
+            pw.print(" invalidations=");
+            pw.print(mStats.invalidations.get());
+            pw.print(" (full=");
+            pw.print(mStats.fullInvalidations.get());
+            pw.println(")");
+            pw.print(prefix);
+            pw.print("  reads: call=");
+            pw.print(mStats.callReads.get());
+            pw.print(" batch=");
+            pw.print(mStats.batchReads.get());
+            pw.print(" query=");
+            pw.print(mStats.queryReads.get());
+            pw.print(" parses=");
+            pw.println(mStats.parses.get());
+            mStats.callLatency.dump(pw, prefix + "  call latency:");
+            mStats.queryLatency.dump(pw, prefix + "  query latency:");
+        }
+
+        /**
+         * Gets a value with its numeric forms, parsing it only if the cached value changed
+         * since the last call. Cache hits neither allocate nor parse.
+         * @param cr Content resolver to use if the value is not cached.
+         * @param name The name of the key to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The parsed value.
+         */
+        ParsedValue getParsedForUser(ContentResolver cr, String name, final int userId) {
+            final String raw = getStringForUser(cr, name, userId);
+            final UserCache cache = getUserCache(userId);
+            if (cache == null) {
+                return new ParsedValue(raw);
+            }
+
+            // A refetched value is a new string instance, so a parse of an older version of
+            // the value is never mistaken for the current one.
+            ParsedValue parsed = cache.parsed.get(name);
+            if (parsed == null || parsed.raw != raw) {
+                parsed = new ParsedValue(raw);
+                cache.parsed.put(name, parsed);
+                if (sStatsEnabled) mStats.parses.incrementAndGet();
+            }
+            return parsed;
+        }
+
+        /**
+         * Caches a value read from the provider, unless the cache has been invalidated since
+         * the version the read started at. A value read before a racing write is then never
+         * cached past the invalidation for that write.
+         */
+        private static void putIfCurrent(UserCache cache, String name, String value,
+                long valuesVersion) {
+            synchronized (cache) {
+                if (cache.version == valuesVersion) {
+                    cache.values.put(name, value == null ? NULL_VALUE : value);
+                }
+            }
+        }
+
+        /**
+         * Brings a user's cache up to date with a new table version. Only cached names whose
+         * generation bucket changed since the cached version are dropped; if the provider
+         * can't report bucket generations, or has restarted since they were last read, the
+         * whole cache is cleared.
+         * @param cr Content resolver to use to read the bucket generations.
+         * @param cache The cache to bring up to date.
+         * @param newValuesVersion The current version of the table.
+         */
+        private void invalidate(ContentResolver cr, UserCache cache, long newValuesVersion) {
+            Bundle b = null;
+            if (mCallGenerationsCommand != null) {
+                try {
+                    Bundle args = null;
+                    if (cache != mSelfCache) {
+                        args = new Bundle();
+                        args.putInt(CALL_METHOD_USER_KEY, cache.userId);
+                    }
+                    IContentProvider cp = lazyGetProvider(cr);
+                    b = cp.call(cr.getPackageName(), mCallGenerationsCommand, null, args);
+                } catch (RemoteException e) {
+                    // Not supported by the remote side?  Fall back to clearing everything.
+                }
+            }
+
+            final long[] generations = b == null
+                    ? null : b.getLongArray(CALL_METHOD_GENERATIONS_KEY);
+            if (b != null) {
+                evictRemovedUsers(b.getIntArray(CALL_METHOD_REMOVED_USERS_KEY));
+            }
+            synchronized (cache) {
+                if (cache.version == newValuesVersion) {
+                    // Another thread got here first
+                    return;
+                }
+                if (sStatsEnabled) mStats.invalidations.incrementAndGet();
+
+                if (generations == null) {
+                    applyGenerationsLocked(cache, null, 0, newValuesVersion);
+                } else {
+                    // The generations and the version they match are read together by the
+                    // provider, so record that version rather than the one we started with.
+                    applyGenerationsLocked(cache, generations, b.getLong(CALL_METHOD_EPOCH_KEY),
+                            b.getLong(CALL_METHOD_VERSION_KEY, newValuesVersion));
+                }
+            }
+        }
+
+        /**
+         * Drops the cached names whose generation bucket changed, or clears the whole cache
+         * if the generations can't be compared with the cached ones, and records the new
+         * version. Must be called with the cache locked.
+         * @param cache The cache to bring up to date.
+         * @param generations The bucket generations matching version, or null if unknown.
+         * @param epoch The provider instance the generations came from.
+         * @param version The table version to record.
+         */
+        private void applyGenerationsLocked(UserCache cache, long[] generations, long epoch,
+                long version) {
+            if (generations == null || cache.generations == null
+                    || generations.length != cache.generations.length
+                    || epoch != cache.epoch) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "] for user "
+                            + cache.userId + ": current " + version
+                            + " != cached " + cache.version);
+                }
+                cache.values.clear();
+                cache.parsed.clear();
+                if (sStatsEnabled) mStats.fullInvalidations.incrementAndGet();
+            } else {
+                final Iterator<String> it = cache.values.keySet().iterator();
+                while (it.hasNext()) {
+                    final int bucket = getGenerationBucket(it.next());
+                    if (generations[bucket] != cache.generations[bucket]) {
+                        it.remove();
+                    }
+                }
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "] for user "
+                            + cache.userId + ": " + cache.values.size()
+                            + " values kept at version " + version);
+                }
+            }
+
+            cache.generations = generations;
+            cache.epoch = epoch;
+            cache.version = version;
+        }
     }
 
     // region Validators
@@ -299,49 +1244,176 @@ public final class CMSettings {
     private static final Validator sBooleanValidator =
             new DiscreteValueValidator(new String[] {"0", "1"});
 
-    private static final Validator sNonNegativeIntegerValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                return Integer.parseInt(value) >= 0;
-            } catch (NumberFormatException e) {
+    private static final Validator sNonNegativeIntegerValidator = new Validator() {
+        @Override
+        public boolean validate(String value) {
+            return parseInt(value) >= 0;
+        }
+    };
+
+    private static final Validator sUriValidator = new Validator() {
+        @Override
+        public boolean validate(String value) {
+            try {
+                Uri.decode(value);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+    };
+
+    private static final Validator sColorValidator =
+            new InclusiveIntegerRangeValidator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    private static final Validator sAlwaysTrueValidator = new Validator() {
+        @Override
+        public boolean validate(String value) {
+            return true;
+        }
+    };
+
+    // Returned by parseInt for values that Integer.parseInt would reject
+    private static final long INVALID_INT = Long.MIN_VALUE;
+
+    /**
+     * Parses a value the same way as {@link Integer#parseInt(String)}, but returns
+     * {@link #INVALID_INT} rather than throwing, since validators see invalid values often.
+     */
+    private static long parseInt(String value) {
+        if (value == null || value.isEmpty()) {
+            return INVALID_INT;
+        }
+
+        final int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        final char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            if (length == 1) {
+                return INVALID_INT;
+            }
+            negative = first == '-';
+            i++;
+        }
+
+        long result = 0;
+        for (; i < length; i++) {
+            final int digit = Character.digit(value.charAt(i), 10);
+            if (digit < 0) {
+                return INVALID_INT;
+            }
+            result = result * 10 + digit;
+            if (result > (long) Integer.MAX_VALUE + 1) {
+                return INVALID_INT;
+            }
+        }
+        if (negative) {
+            return -result;
+        }
+        return result > Integer.MAX_VALUE ? INVALID_INT : result;
+    }
+
+    /**
+     * Returns whether {@link Float#parseFloat(String)} accepts a value, without throwing.
+     * Follows the grammar of {@link Double#valueOf(String)}: surrounding whitespace, an
+     * optional sign, then "NaN", "Infinity", a hexadecimal or a decimal floating point
+     * literal with an optional type suffix.
+     */
+    private static boolean isParsableFloat(String value) {
+        if (value == null) {
+            return false;
+        }
+        int i = 0;
+        int end = value.length();
+        while (i < end && value.charAt(i) <= ' ') {
+            i++;
+        }
+        while (end > i && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (i == end) {
+            return false;
+        }
+
+        char c = value.charAt(i);
+        if (c == '+' || c == '-') {
+            if (++i == end) {
                 return false;
             }
+            c = value.charAt(i);
+        }
+        if (c == 'N') {
+            return end - i == 3 && value.startsWith("NaN", i);
+        }
+        if (c == 'I') {
+            return end - i == 8 && value.startsWith("Infinity", i);
         }
-    };
 
-    private static final Validator sUriValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                Uri.decode(value);
-                return true;
-            } catch (IllegalArgumentException e) {
-                return false;
+        final boolean hex = c == '0' && i + 1 < end
+                && (value.charAt(i + 1) == 'x' || value.charAt(i + 1) == 'X');
+        if (hex) {
+            i += 2;
+        }
+        int digits = 0;
+        while (i < end && isDigit(value.charAt(i), hex)) {
+            i++;
+            digits++;
+        }
+        if (i < end && value.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(value.charAt(i), hex)) {
+                i++;
+                digits++;
             }
         }
-    };
+        if (digits == 0) {
+            return false;
+        }
 
-    private static final Validator sColorValidator =
-            new InclusiveIntegerRangeValidator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        // The exponent is mandatory for hexadecimal literals
+        if (i < end && (hex ? (value.charAt(i) == 'p' || value.charAt(i) == 'P')
+                : (value.charAt(i) == 'e' || value.charAt(i) == 'E'))) {
+            i++;
+            if (i < end && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                i++;
+            }
+            int exponentDigits = 0;
+            while (i < end && isDigit(value.charAt(i), false)) {
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                return false;
+            }
+        } else if (hex) {
+            return false;
+        }
 
-    private static final Validator sAlwaysTrueValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            return true;
+        if (i < end) {
+            c = value.charAt(i);
+            if (c == 'f' || c == 'F' || c == 'd' || c == 'D') {
+                i++;
+            }
         }
-    };
+        return i == end;
+    }
+
+    private static boolean isDigit(char c, boolean hex) {
+        return (c >= '0' && c <= '9')
+                || (hex && ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')));
+    }
 
     private static final class DiscreteValueValidator implements Validator {
-        private final String[] mValues;
+        private final ArraySet<String> mValues;
 
         public DiscreteValueValidator(String[] values) {
-            mValues = values;
+            mValues = new ArraySet<String>(Arrays.asList(values));
         }
 
         @Override
         public boolean validate(String value) {
-            return ArrayUtils.contains(mValues, value);
+            return mValues.contains(value);
         }
     }
 
@@ -356,12 +1428,8 @@ public final class CMSettings {
 
         @Override
         public boolean validate(String value) {
-            try {
-                final int intValue = Integer.parseInt(value);
-                return intValue >= mMin && intValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
+            final long intValue = parseInt(value);
+            return intValue != INVALID_INT && intValue >= mMin && intValue <= mMax;
         }
     }
 
@@ -376,51 +1444,105 @@ public final class CMSettings {
 
         @Override
         public boolean validate(String value) {
-            try {
-                final float floatValue = Float.parseFloat(value);
-                return floatValue >= mMin && floatValue <= mMax;
-            } catch (NumberFormatException e) {
+            if (!isParsableFloat(value)) {
                 return false;
             }
+            final float floatValue = Float.parseFloat(value);
+            return floatValue >= mMin && floatValue <= mMax;
         }
     }
 
+    /**
+     * Validates lists of values separated by a literal delimiter. Empty items are ignored.
+     * Items are matched against the valid values in place, so validation does not allocate.
+     */
     private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
+        // Valid values, keyed by their length
+        private final SparseArray<String[]> mValidValues = new SparseArray<String[]>();
         private final String mDelimiter;
         private final boolean mAllowEmptyList;
 
         public DelimitedListValidator(String[] validValues, String delimiter,
                                       boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+            if (TextUtils.isEmpty(delimiter)) {
+                throw new IllegalArgumentException("Delimiter must not be empty");
+            }
+            for (String validValue : validValues) {
+                final String[] sameLength = mValidValues.get(validValue.length());
+                mValidValues.put(validValue.length(), ArrayUtils.appendElement(String.class,
+                        sameLength, validValue));
+            }
             mDelimiter = delimiter;
             mAllowEmptyList = allowEmptyList;
         }
 
         @Override
         public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
-            if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
+            if (TextUtils.isEmpty(value)) {
+                return mAllowEmptyList;
+            }
+
+            boolean hasItems = false;
+            final int length = value.length();
+            int start = 0;
+            while (start <= length) {
+                int end = value.indexOf(mDelimiter, start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (end > start) {
+                    if (!isValidItem(value, start, end)) {
+                        return false;
                     }
-                    values.add(item);
+                    hasItems = true;
                 }
+                start = end + mDelimiter.length();
             }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
-                return true;
-            }
+            return hasItems || mAllowEmptyList;
+        }
 
+        private boolean isValidItem(String value, int start, int end) {
+            final String[] candidates = mValidValues.get(end - start);
+            if (candidates != null) {
+                for (String candidate : candidates) {
+                    if (value.regionMatches(start, candidate, 0, end - start)) {
+                        return true;
+                    }
+                }
+            }
             return false;
         }
     }
+
+    /**
+     * Validates lists of free-form items separated by a delimiter character, which may be
+     * empty as a whole but must not contain empty items.
+     */
+    private static final class NonEmptyItemsValidator implements Validator {
+        private final char mDelimiter;
+
+        public NonEmptyItemsValidator(char delimiter) {
+            mDelimiter = delimiter;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            if (TextUtils.isEmpty(value)) {
+                return true;  // Empty list is allowed though.
+            }
+            // An item is empty if the list starts or ends with a delimiter, or two are adjacent
+            final int last = value.length() - 1;
+            if (value.charAt(0) == mDelimiter || value.charAt(last) == mDelimiter) {
+                return false;
+            }
+            for (int i = 1; i < last; i++) {
+                if (value.charAt(i) == mDelimiter && value.charAt(i + 1) == mDelimiter) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
     // endregion Validators
 
     /**
@@ -436,7 +1558,11 @@ public final class CMSettings {
                 SYS_PROP_CM_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_GET_SYSTEM_BATCH,
+                CALL_METHOD_PUT_SYSTEM_BATCH,
+                CALL_METHOD_LIST_SYSTEM,
+                CALL_METHOD_GENERATIONS_SYSTEM);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_SECURE;
@@ -516,6 +1642,40 @@ public final class CMSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up a name with its numeric forms, which are parsed once per cached value.
+         */
+        private static NameValueCache.ParsedValue getParsedForUser(ContentResolver resolver,
+                String name, int userId) {
+            if (MOVED_TO_SECURE.contains(name)) {
+                Log.w(TAG, "Setting " + name + " has moved from CMSettings.System"
+                        + " to CMSettings.Secure, value is unchanged.");
+                return CMSettings.Secure.getParsedForUser(resolver, name, userId);
+            }
+            return sNameValueCache.getParsedForUser(resolver, name, userId);
+        }
+
+        /**
+         * Look up several names in the database, fetching every name that is not already
+         * cached with a single call into the settings provider.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId the user to look up the names for
+         * @return the corresponding values in the same order as {@code names}; each entry is
+         *         null if the name is not present
+         * @hide
+         */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            final String[] values = sNameValueCache.getStringsForUser(resolver, names, userId);
+            for (int i = 0; i < names.length; i++) {
+                if (MOVED_TO_SECURE.contains(names[i])) {
+                    values[i] = getStringForUser(resolver, names[i], userId);
+                }
+            }
+            return values;
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -538,6 +1698,28 @@ public final class CMSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database as one change, so observers and
+         * the caches of other processes are updated once for all of them.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, in the same order as {@code names}
+         * @param userId the user to store the values for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from CMSettings.System"
+                            + " to CMSettings.Secure, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -558,12 +1740,8 @@ public final class CMSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isInt ? v.intValue : def;
         }
 
         /**
@@ -592,12 +1770,37 @@ public final class CMSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isInt) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.intValue;
+        }
+
+        /**
+         * Convenience function for retrieving a single settings value
+         * as a boolean.  Note that internally setting values are always
+         * stored as strings; this function treats any integer other than
+         * 0 as true.  The default value will be returned if the setting is
+         * not defined or not an integer.
+         *
+         * @param cr The ContentResolver to access.
+         * @param name The name of the setting to retrieve.
+         * @param def Value to return if the setting is not defined.
+         *
+         * @return The setting's current value, or 'def' if it is not defined
+         * or not a valid integer.
+         * @hide
+         */
+        public static boolean getBoolean(ContentResolver cr, String name, boolean def) {
+            return getBooleanForUser(cr, name, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean getBooleanForUser(ContentResolver cr, String name, boolean def,
+                int userId) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isInt ? v.intValue != 0 : def;
         }
 
         /**
@@ -644,14 +1847,8 @@ public final class CMSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isLong ? v.longValue : def;
         }
 
         /**
@@ -679,12 +1876,11 @@ public final class CMSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isLong) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.longValue;
         }
 
         /**
@@ -731,12 +1927,8 @@ public final class CMSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isFloat ? v.floatValue : def;
         }
 
         /**
@@ -765,15 +1957,11 @@ public final class CMSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new CMSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isFloat) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.floatValue;
         }
 
         /**
@@ -1434,12 +2622,14 @@ public final class CMSettings {
                         if (colorAdjustment != null && colorAdjustment.length != 3) {
                             return false;
                         }
-                        Validator floatValidator = new InclusiveFloatRangeValidator(0, 1);
                         return colorAdjustment == null ||
-                                floatValidator.validate(colorAdjustment[0]) &&
-                                floatValidator.validate(colorAdjustment[1]) &&
-                                floatValidator.validate(colorAdjustment[2]);
+                                mFloatValidator.validate(colorAdjustment[0]) &&
+                                mFloatValidator.validate(colorAdjustment[1]) &&
+                                mFloatValidator.validate(colorAdjustment[2]);
                     }
+
+                    private final Validator mFloatValidator =
+                            new InclusiveFloatRangeValidator(0, 1);
                 };
 
         /**
@@ -1503,8 +2693,17 @@ public final class CMSettings {
                     @Override
                     public boolean validate(String value) {
                         final Locale locale = new Locale(value);
-                        return ArrayUtils.contains(Locale.getAvailableLocales(), locale);
+                        synchronized (this) {
+                            if (mAvailableLocales == null) {
+                                // getAvailableLocales() copies the whole list on every call
+                                mAvailableLocales = new ArraySet<Locale>(
+                                        Arrays.asList(Locale.getAvailableLocales()));
+                            }
+                        }
+                        return mAvailableLocales.contains(locale);
                     }
+
+                    private ArraySet<Locale> mAvailableLocales;
                 };
 
         /**
@@ -2182,7 +3381,11 @@ public final class CMSettings {
                 SYS_PROP_CM_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_GET_SECURE_BATCH,
+                CALL_METHOD_PUT_SECURE_BATCH,
+                CALL_METHOD_LIST_SECURE,
+                CALL_METHOD_GENERATIONS_SECURE);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_GLOBAL;
@@ -2262,6 +3465,40 @@ public final class CMSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up a name with its numeric forms, which are parsed once per cached value.
+         */
+        private static NameValueCache.ParsedValue getParsedForUser(ContentResolver resolver,
+                String name, int userId) {
+            if (MOVED_TO_GLOBAL.contains(name)) {
+                Log.w(TAG, "Setting " + name + " has moved from CMSettings.Secure"
+                        + " to CMSettings.Global, value is unchanged.");
+                return CMSettings.Global.getParsedForUser(resolver, name, userId);
+            }
+            return sNameValueCache.getParsedForUser(resolver, name, userId);
+        }
+
+        /**
+         * Look up several names in the database, fetching every name that is not already
+         * cached with a single call into the settings provider.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId the user to look up the names for
+         * @return the corresponding values in the same order as {@code names}; each entry is
+         *         null if the name is not present
+         * @hide
+         */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            final String[] values = sNameValueCache.getStringsForUser(resolver, names, userId);
+            for (int i = 0; i < names.length; i++) {
+                if (MOVED_TO_GLOBAL.contains(names[i])) {
+                    values[i] = getStringForUser(resolver, names[i], userId);
+                }
+            }
+            return values;
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -2284,6 +3521,28 @@ public final class CMSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database as one change, so observers and
+         * the caches of other processes are updated once for all of them.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, in the same order as {@code names}
+         * @param userId the user to store the values for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            for (String name : names) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from CMSettings.Secure"
+                            + " to CMSettings.Global, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2304,12 +3563,8 @@ public final class CMSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isInt ? v.intValue : def;
         }
 
         /**
@@ -2338,12 +3593,37 @@ public final class CMSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isInt) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.intValue;
+        }
+
+        /**
+         * Convenience function for retrieving a single settings value
+         * as a boolean.  Note that internally setting values are always
+         * stored as strings; this function treats any integer other than
+         * 0 as true.  The default value will be returned if the setting is
+         * not defined or not an integer.
+         *
+         * @param cr The ContentResolver to access.
+         * @param name The name of the setting to retrieve.
+         * @param def Value to return if the setting is not defined.
+         *
+         * @return The setting's current value, or 'def' if it is not defined
+         * or not a valid integer.
+         * @hide
+         */
+        public static boolean getBoolean(ContentResolver cr, String name, boolean def) {
+            return getBooleanForUser(cr, name, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean getBooleanForUser(ContentResolver cr, String name, boolean def,
+                int userId) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isInt ? v.intValue != 0 : def;
         }
 
         /**
@@ -2390,14 +3670,8 @@ public final class CMSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isLong ? v.longValue : def;
         }
 
         /**
@@ -2425,12 +3699,11 @@ public final class CMSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isLong) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.longValue;
         }
 
         /**
@@ -2477,12 +3750,8 @@ public final class CMSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isFloat ? v.floatValue : def;
         }
 
         /**
@@ -2511,15 +3780,11 @@ public final class CMSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new CMSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isFloat) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.floatValue;
         }
 
         /**
@@ -2943,42 +4208,14 @@ public final class CMSettings {
         /**
          * @hide
          */
-        public static final Validator PROTECTED_COMPONENTS_VALIDATOR = new Validator() {
-            private final String mDelimiter = "|";
-
-            @Override
-            public boolean validate(String value) {
-                if (!TextUtils.isEmpty(value)) {
-                    final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                    for (String item : array) {
-                        if (TextUtils.isEmpty(item)) {
-                            return false; // Empty components not allowed
-                        }
-                    }
-                }
-                return true;  // Empty list is allowed though.
-            }
-        };
+        public static final Validator PROTECTED_COMPONENTS_VALIDATOR =
+                new NonEmptyItemsValidator('|');
 
         /**
          * @hide
          */
-        public static final Validator PROTECTED_COMPONENTS_MANAGER_VALIDATOR = new Validator() {
-            private final String mDelimiter = "|";
-
-            @Override
-            public boolean validate(String value) {
-                if (!TextUtils.isEmpty(value)) {
-                    final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                    for (String item : array) {
-                        if (TextUtils.isEmpty(item)) {
-                            return false; // Empty components not allowed
-                        }
-                    }
-                }
-                return true;  // Empty list is allowed though.
-            }
-        };
+        public static final Validator PROTECTED_COMPONENTS_MANAGER_VALIDATOR =
+                new NonEmptyItemsValidator('|');
 
         /**
          * Mapping of validators for all secure settings.  This map is used to validate both valid
@@ -3026,7 +4263,11 @@ public final class CMSettings {
                 SYS_PROP_CM_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL);
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_GET_GLOBAL_BATCH,
+                CALL_METHOD_PUT_GLOBAL_BATCH,
+                CALL_METHOD_LIST_GLOBAL,
+                CALL_METHOD_GENERATIONS_GLOBAL);
 
         // region Methods
 
@@ -3095,6 +4336,29 @@ public final class CMSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up a name with its numeric forms, which are parsed once per cached value.
+         */
+        private static NameValueCache.ParsedValue getParsedForUser(ContentResolver resolver,
+                String name, int userId) {
+            return sNameValueCache.getParsedForUser(resolver, name, userId);
+        }
+
+        /**
+         * Look up several names in the database, fetching every name that is not already
+         * cached with a single call into the settings provider.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId the user to look up the names for
+         * @return the corresponding values in the same order as {@code names}; each entry is
+         *         null if the name is not present
+         * @hide
+         */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -3112,6 +4376,21 @@ public final class CMSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database as one change, so observers and
+         * the caches of other processes are updated once for all of them.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, in the same order as {@code names}
+         * @param userId the user to store the values for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -3132,12 +4411,8 @@ public final class CMSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isInt ? v.intValue : def;
         }
 
         /**
@@ -3166,12 +4441,37 @@ public final class CMSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isInt) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.intValue;
+        }
+
+        /**
+         * Convenience function for retrieving a single settings value
+         * as a boolean.  Note that internally setting values are always
+         * stored as strings; this function treats any integer other than
+         * 0 as true.  The default value will be returned if the setting is
+         * not defined or not an integer.
+         *
+         * @param cr The ContentResolver to access.
+         * @param name The name of the setting to retrieve.
+         * @param def Value to return if the setting is not defined.
+         *
+         * @return The setting's current value, or 'def' if it is not defined
+         * or not a valid integer.
+         * @hide
+         */
+        public static boolean getBoolean(ContentResolver cr, String name, boolean def) {
+            return getBooleanForUser(cr, name, def, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean getBooleanForUser(ContentResolver cr, String name, boolean def,
+                int userId) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isInt ? v.intValue != 0 : def;
         }
 
         /**
@@ -3218,14 +4518,8 @@ public final class CMSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isLong ? v.longValue : def;
         }
 
         /**
@@ -3253,12 +4547,11 @@ public final class CMSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isLong) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.longValue;
         }
 
         /**
@@ -3305,12 +4598,8 @@ public final class CMSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            return v.isFloat ? v.floatValue : def;
         }
 
         /**
@@ -3339,15 +4628,11 @@ public final class CMSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new CMSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final NameValueCache.ParsedValue v = getParsedForUser(cr, name, userId);
+            if (!v.isFloat) {
                 throw new CMSettingNotFoundException(name);
             }
+            return v.floatValue;
         }
 
         /**
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.internal.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power of two microsecond buckets, from under 1us up
+ * to 65ms and more. Recording is safe from any thread and never allocates.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKET_COUNT = 18;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray mTotals = new AtomicLongArray(2);
+
+    /**
+     * Records one duration.
+     * @param durationNs The duration in nanoseconds.
+     */
+    public void record(long durationNs) {
+        final long micros = durationNs / 1000;
+        final int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        mCounts.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        mTotals.incrementAndGet(0);
+        mTotals.addAndGet(1, durationNs);
+    }
+
+    /**
+     * @return The number of recorded durations.
+     */
+    public long getCount() {
+        return mTotals.get(0);
+    }
+
+    /**
+     * @return The sum of all recorded durations in nanoseconds.
+     */
+    public long getTotalNs() {
+        return mTotals.get(1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotals.set(0, 0);
+        mTotals.set(1, 0);
+    }
+
+    /**
+     * Prints the count, mean and the non-empty buckets on a single line, e.g.
+     * {@code count=12 mean=85us <128us=10 <256us=2}.
+     * @param pw The writer to print to.
+     * @param label Printed in front of the values.
+     */
+    public void dump(PrintWriter pw, String label) {
+        final long count = getCount();
+        pw.print(label);
+        pw.print(" count=");
+        pw.print(count);
+        if (count > 0) {
+            pw.print(" mean=");
+            pw.print(getTotalNs() / count / 1000);
+            pw.print("us");
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long bucketCount = mCounts.get(i);
+            if (bucketCount == 0) {
+                continue;
+            }
+            if (i == BUCKET_COUNT - 1) {
+                pw.print(" >=");
+                pw.print(1L << (i - 1));
+            } else {
+                pw.print(" <");
+                pw.print(1L << i);
+            }
+            pw.print("us=");
+            pw.print(bucketCount);
+        }
+        pw.println();
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.internal.util;
+
+import cyanogenmod.providers.CMSettings;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Layout of a settings table in a memory mapped file, written by the CM settings provider
+ * and read by other processes without a binder call.
+ *
+ * The file holds a header, an open addressing hash table of slots and the entries. The header
+ * carries the name bucket generations matching the table version, so readers can drop only
+ * the cached names that changed, as with a generations call to the provider. Every
+ * slot holds the hash code of a name and the offset of its entry, and every entry holds the
+ * name and value as UTF-16 code units, so lookups compare names in place without allocating.
+ *
+ * The writer bumps a sequence number to an odd value before it changes anything and to the
+ * next even value when it is done. Readers give up rather than wait if the sequence number
+ * is odd, or changes during a lookup. Plain accesses of shared memory are not ordered across
+ * processes, though, so a reader may still see stores of a write in progress, or of the
+ * next one, mixed with those of the write it started on.
+ *
+ * Correctness therefore doesn't rely on memory ordering. The header, every slot and every
+ * entry end in a check value over their contents and the final sequence number of the write
+ * that produced them; the slot checks also cover the table version, the slot count and the
+ * slot's position. Readers only use what verifies against the even sequence number they read
+ * first, so anything written by another write, or only partly written, is rejected but for a
+ * chance of about 2^-32 per record. The check values are not cryptographic, and writers are
+ * trusted. Readers never trust an offset or length from the file either.
+ */
+public final class SharedSettingsTable {
+    /**
+     * Returned by {@link #read} if the table can't answer the lookup right now. Compared by
+     * identity.
+     */
+    public static final String UNAVAILABLE = new String("unavailable");
+
+    // Returned by readEntry for a valid entry of another name. Compared by identity.
+    private static final String NO_MATCH = new String("no match");
+
+    private static final int MAGIC = 0x434d5354; // "CMST"
+    private static final int FORMAT = 3;
+
+    /**
+     * Number of name bucket generations in the header.
+     */
+    public static final int GENERATION_COUNT = CMSettings.GENERATION_BUCKET_COUNT;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_OFFSET = 4;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int VERSION_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 24;
+    private static final int SLOT_COUNT_OFFSET = 28;
+    private static final int HEADER_CHECK_OFFSET = 32;
+    private static final int EPOCH_OFFSET = 40;
+    private static final int GENERATIONS_OFFSET = 48;
+    private static final int HEADER_SIZE = GENERATIONS_OFFSET + GENERATION_COUNT * 8;
+
+    // Hash code, entry offset and check value
+    private static final int SLOT_SIZE = 12;
+    private static final int MIN_SLOT_COUNT = 16;
+
+    // Name length, value length and check value, next to the characters
+    private static final int ENTRY_OVERHEAD = 12;
+
+    // Set once the writer has moved on to another file; readers should map the new one.
+    private static final int FLAG_RETIRED = 0x01;
+
+    // FNV-1a parameters, applied to whole ints and chars rather than bytes
+    private static final int CHECK_SEED = 0x811c9dc5;
+    private static final int CHECK_PRIME = 0x01000193;
+
+    private SharedSettingsTable() {
+        // no instantiation
+    }
+
+    /**
+     * Returns the number of bytes needed to hold some values.
+     * @param values Setting name -> value.
+     * @return The size in bytes.
+     */
+    public static int getRequiredSize(Map<String, String> values) {
+        int size = HEADER_SIZE + getSlotCount(values.size()) * SLOT_SIZE;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            final String value = entry.getValue();
+            size += ENTRY_OVERHEAD + entry.getKey().length() * 2
+                    + (value == null ? 0 : value.length() * 2);
+        }
+        return size;
+    }
+
+    /**
+     * Replaces the contents of a table. There must only be a single writer.
+     * @param buffer The mapped file.
+     * @param version The table version the values are at least as new as.
+     * @param epoch Identifies the provider instance the generations come from.
+     * @param generations The {@link #GENERATION_COUNT} name bucket generations at the version.
+     * @param values Setting name -> value.
+     * @return Whether the values fit. The table is left unchanged if they don't.
+     */
+    public static boolean write(ByteBuffer buffer, long version, long epoch, long[] generations,
+            Map<String, String> values) {
+        if (generations.length != GENERATION_COUNT) {
+            throw new IllegalArgumentException("Expected " + GENERATION_COUNT
+                    + " generations, got " + generations.length);
+        }
+        if (getRequiredSize(values) > buffer.capacity()) {
+            return false;
+        }
+
+        final long sequence = buffer.getLong(SEQUENCE_OFFSET);
+        final long startSequence = (sequence & 1) == 0 ? sequence + 1 : sequence;
+        final long endSequence = startSequence + 1;
+        final int tag = (int) endSequence;
+        buffer.putLong(SEQUENCE_OFFSET, startSequence);
+
+        final int slotCount = getSlotCount(values.size());
+        final int[] slotHashes = new int[slotCount];
+        final int[] slotOffsets = new int[slotCount];
+        int offset = HEADER_SIZE + slotCount * SLOT_SIZE;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            final String name = entry.getKey();
+            final int hash = name.hashCode();
+            int slot = hash & (slotCount - 1);
+            while (slotOffsets[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slotHashes[slot] = hash;
+            slotOffsets[slot] = offset;
+            offset = putEntry(buffer, offset, name, entry.getValue(), tag);
+        }
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            final int slotOffset = HEADER_SIZE + slot * SLOT_SIZE;
+            buffer.putInt(slotOffset, slotHashes[slot]);
+            buffer.putInt(slotOffset + 4, slotOffsets[slot]);
+            buffer.putInt(slotOffset + 8, getSlotCheck(tag, version, slotCount, slot,
+                    slotHashes[slot], slotOffsets[slot]));
+        }
+
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(FORMAT_OFFSET, FORMAT);
+        buffer.putLong(VERSION_OFFSET, version);
+        buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+        buffer.putLong(EPOCH_OFFSET, epoch);
+        for (int i = 0; i < GENERATION_COUNT; i++) {
+            buffer.putLong(GENERATIONS_OFFSET + i * 8, generations[i]);
+        }
+        buffer.putInt(HEADER_CHECK_OFFSET,
+                getHeaderCheck(tag, version, slotCount, epoch, generations));
+
+        buffer.putLong(SEQUENCE_OFFSET, endSequence);
+        return true;
+    }
+
+    /**
+     * Marks a table as replaced by another file, so readers map the new one. Readers that
+     * don't see the flag yet keep reading the old contents, which still verify.
+     * @param buffer The mapped file.
+     */
+    public static void retire(ByteBuffer buffer) {
+        buffer.putInt(FLAGS_OFFSET, buffer.getInt(FLAGS_OFFSET) | FLAG_RETIRED);
+    }
+
+    /**
+     * @param buffer The mapped file.
+     * @return Whether the writer has moved on to another file.
+     */
+    public static boolean isRetired(ByteBuffer buffer) {
+        final int flags = buffer.getInt(FLAGS_OFFSET);
+        return (flags & FLAG_RETIRED) != 0;
+    }
+
+    /**
+     * @param buffer The mapped file.
+     * @return The table version of the contents, or -1 if it can't be read right now.
+     */
+    public static long getVersion(ByteBuffer buffer) {
+        final long sequence = buffer.getLong(SEQUENCE_OFFSET);
+        if ((sequence & 1) != 0 || sequence == 0) {
+            return -1;
+        }
+        final long version = buffer.getLong(VERSION_OFFSET);
+        final long[] generations = new long[GENERATION_COUNT];
+        if (readHeader(buffer, (int) sequence, version, generations) == -1) {
+            return -1;
+        }
+        return buffer.getLong(SEQUENCE_OFFSET) == sequence ? version : -1;
+    }
+
+    /**
+     * Reads the name bucket generations without waiting for the writer.
+     * @param buffer The mapped file.
+     * @param version The table version the caller expects.
+     * @param generations Receives the {@link #GENERATION_COUNT} generations. Left in an
+     *     undefined state if they can't be read.
+     * @return The epoch of the provider instance the generations come from, or -1 if the
+     *     table is being written or not at the expected version.
+     */
+    public static long readGenerations(ByteBuffer buffer, long version, long[] generations) {
+        final long sequence = buffer.getLong(SEQUENCE_OFFSET);
+        if ((sequence & 1) != 0 || sequence == 0 || buffer.getInt(MAGIC_OFFSET) != MAGIC
+                || buffer.getInt(FORMAT_OFFSET) != FORMAT) {
+            return -1;
+        }
+        final long epoch = readHeader(buffer, (int) sequence, version, generations);
+        return buffer.getLong(SEQUENCE_OFFSET) == sequence ? epoch : -1;
+    }
+
+    /**
+     * Reads the header fields once each and verifies them against the header check.
+     * @param generations Receives the generations.
+     * @return The epoch, or -1 if the header doesn't verify for the version.
+     */
+    private static long readHeader(ByteBuffer buffer, int tag, long version,
+            long[] generations) {
+        final int slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+        final long epoch = buffer.getLong(EPOCH_OFFSET);
+        for (int i = 0; i < GENERATION_COUNT; i++) {
+            generations[i] = buffer.getLong(GENERATIONS_OFFSET + i * 8);
+        }
+        final int check = buffer.getInt(HEADER_CHECK_OFFSET);
+        if (buffer.getLong(VERSION_OFFSET) != version
+                || check != getHeaderCheck(tag, version, slotCount, epoch, generations)) {
+            return -1;
+        }
+        return epoch;
+    }
+
+    /**
+     * Looks up a value without waiting for the writer.
+     * @param buffer The mapped file.
+     * @param name The name of the setting.
+     * @param version The table version the caller expects.
+     * @return The value, null if the setting is not set, or {@link #UNAVAILABLE} if the table
+     *     is retired, being written or not at the expected version.
+     */
+    public static String read(ByteBuffer buffer, String name, long version) {
+        try {
+            final long sequence = buffer.getLong(SEQUENCE_OFFSET);
+            if ((sequence & 1) != 0 || sequence == 0 || isRetired(buffer)) {
+                return UNAVAILABLE;
+            }
+
+            final String value = find(buffer, name, version, (int) sequence);
+
+            return buffer.getLong(SEQUENCE_OFFSET) == sequence ? value : UNAVAILABLE;
+        } catch (IndexOutOfBoundsException e) {
+            // Offsets from a write in progress
+            return UNAVAILABLE;
+        }
+    }
+
+    private static String find(ByteBuffer buffer, String name, long version, int tag) {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(FORMAT_OFFSET) != FORMAT
+                || buffer.getLong(VERSION_OFFSET) != version) {
+            return UNAVAILABLE;
+        }
+        final int slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+        if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0
+                || slotCount > (buffer.capacity() - HEADER_SIZE) / SLOT_SIZE) {
+            return UNAVAILABLE;
+        }
+
+        final int hash = name.hashCode();
+        int slot = hash & (slotCount - 1);
+        for (int probes = 0; probes < slotCount; probes++) {
+            final int slotOffset = HEADER_SIZE + slot * SLOT_SIZE;
+            final int slotHash = buffer.getInt(slotOffset);
+            final int entryOffset = buffer.getInt(slotOffset + 4);
+            if (buffer.getInt(slotOffset + 8)
+                    != getSlotCheck(tag, version, slotCount, slot, slotHash, entryOffset)) {
+                return UNAVAILABLE;
+            }
+            if (entryOffset == 0) {
+                return null;
+            }
+            if (slotHash == hash) {
+                // Verified even if the name differs, since a torn name could hide a match
+                final String value = readEntry(buffer, entryOffset, name, tag);
+                if (value != NO_MATCH) {
+                    return value;
+                }
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+        return null;
+    }
+
+    private static int getSlotCount(int size) {
+        // At most half full, so probe sequences stay short
+        int slotCount = MIN_SLOT_COUNT;
+        while (slotCount < size * 2) {
+            slotCount <<= 1;
+        }
+        return slotCount;
+    }
+
+    private static int getHeaderCheck(int tag, long version, int slotCount, long epoch,
+            long[] generations) {
+        int check = mix(CHECK_SEED, tag);
+        check = mix(check, (int) version);
+        check = mix(check, (int) (version >>> 32));
+        check = mix(check, slotCount);
+        check = mix(check, (int) epoch);
+        check = mix(check, (int) (epoch >>> 32));
+        for (long generation : generations) {
+            check = mix(check, (int) generation);
+            check = mix(check, (int) (generation >>> 32));
+        }
+        return finish(check);
+    }
+
+    private static int getSlotCheck(int tag, long version, int slotCount, int slot, int hash,
+            int entryOffset) {
+        int check = mix(CHECK_SEED, tag);
+        check = mix(check, (int) version);
+        check = mix(check, (int) (version >>> 32));
+        check = mix(check, slotCount);
+        check = mix(check, slot);
+        check = mix(check, hash);
+        return finish(mix(check, entryOffset));
+    }
+
+    private static int mix(int check, int value) {
+        return (check ^ value) * CHECK_PRIME;
+    }
+
+    private static int finish(int check) {
+        // Spreads every input bit over the whole value, like the MurmurHash3 finalizer
+        check ^= check >>> 16;
+        check *= 0x85ebca6b;
+        check ^= check >>> 13;
+        check *= 0xc2b2ae35;
+        return check ^ (check >>> 16);
+    }
+
+    private static int putEntry(ByteBuffer buffer, int offset, String name, String value,
+            int tag) {
+        int check = mix(CHECK_SEED, tag);
+        buffer.putInt(offset, name.length());
+        check = mix(check, name.length());
+        offset += 4;
+        for (int i = 0; i < name.length(); i++) {
+            buffer.putChar(offset, name.charAt(i));
+            check = mix(check, name.charAt(i));
+            offset += 2;
+        }
+
+        final int valueLength = value == null ? -1 : value.length();
+        buffer.putInt(offset, valueLength);
+        check = mix(check, valueLength);
+        offset += 4;
+        for (int i = 0; i < valueLength; i++) {
+            buffer.putChar(offset, value.charAt(i));
+            check = mix(check, value.charAt(i));
+            offset += 2;
+        }
+
+        buffer.putInt(offset, finish(check));
+        return offset + 4;
+    }
+
+    /**
+     * Reads an entry and verifies it against its check value.
+     * @return The value if the entry is for the name, {@link #NO_MATCH} if it is for another
+     *     name, or {@link #UNAVAILABLE} if it doesn't verify.
+     */
+    private static String readEntry(ByteBuffer buffer, int offset, String name, int tag) {
+        int check = mix(CHECK_SEED, tag);
+        final int nameLength = buffer.getInt(offset);
+        if (nameLength < 0 || nameLength > (buffer.capacity() - offset - 4) / 2) {
+            return UNAVAILABLE;
+        }
+        check = mix(check, nameLength);
+        boolean matches = nameLength == name.length();
+        offset += 4;
+        for (int i = 0; i < nameLength; i++) {
+            final char c = buffer.getChar(offset);
+            check = mix(check, c);
+            if (matches && c != name.charAt(i)) {
+                matches = false;
+            }
+            offset += 2;
+        }
+
+        final int valueLength = buffer.getInt(offset);
+        if (valueLength < -1 || valueLength > (buffer.capacity() - offset - 8) / 2) {
+            return UNAVAILABLE;
+        }
+        check = mix(check, valueLength);
+        offset += 4;
+        final char[] chars = matches && valueLength > 0 ? new char[valueLength] : null;
+        for (int i = 0; i < valueLength; i++) {
+            final char c = buffer.getChar(offset);
+            check = mix(check, c);
+            if (chars != null) {
+                chars[i] = c;
+            }
+            offset += 2;
+        }
+
+        if (buffer.getInt(offset) != finish(check)) {
+            return UNAVAILABLE;
+        }
+        if (!matches) {
+            return NO_MATCH;
+        }
+        if (valueLength == -1) {
+            return null;
+        }
+        return chars == null ? "" : new String(chars);
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.cyanogenmod.tests.profiles.unit;
 
+import android.app.NotificationGroup;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -26,6 +27,7 @@ import android.util.Log;
 import cyanogenmod.app.CMContextConstants;
 import cyanogenmod.app.Profile;
 import cyanogenmod.app.ProfileManager;
+import cyanogenmod.app.ProfileSummary;
 import cyanogenmod.app.IProfileManager;
 import cyanogenmod.providers.CMSettings;
 
@@ -222,4 +224,87 @@ public class ProfileManagerTest extends AndroidTestCase {
         assertEquals(expectedProfileName, expectedProfile.getName());
         mProfileManager.resetAll();
     }
+
+    @SmallTest
+    public void testGetNotificationGroupForPackage() {
+        ensureProfilesEnabled();
+        final String pkg = "org.cyanogenmod.tests.profiles.unknown";
+        assertNull(mProfileManager.getNotificationGroupForPackage(pkg));
+
+        NotificationGroup group = new NotificationGroup("TEST GROUP");
+        group.addPackage(pkg);
+        mProfileManager.addNotificationGroup(group);
+        // Our own changes drop the cached lookups at once
+        assertEquals(group.getUuid(),
+                mProfileManager.getNotificationGroupForPackage(pkg).getUuid());
+
+        mProfileManager.removeNotificationGroup(group);
+        assertNull(mProfileManager.getNotificationGroupForPackage(pkg));
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testCachedProfiles() {
+        ensureProfilesEnabled();
+        mProfileManager.setCachingEnabled(true);
+        try {
+            final int count = mProfileManager.getProfiles().length;
+            assertSame(mProfileManager.getActiveProfile(), mProfileManager.getActiveProfile());
+
+            Profile expectedProfile = new Profile("CACHED PROFILE");
+            mProfileManager.addProfile(expectedProfile);
+            // Our own changes drop the snapshot at once
+            assertTrue(mProfileManager.profileExists(expectedProfile.getUuid()));
+            assertEquals(count + 1, mProfileManager.getProfiles().length);
+            assertEquals(expectedProfile.getName(),
+                    mProfileManager.getProfile(expectedProfile.getUuid()).getName());
+
+            mProfileManager.removeProfile(expectedProfile);
+            assertFalse(mProfileManager.profileExists(expectedProfile.getUuid()));
+            assertEquals(count, mProfileManager.getProfiles().length);
+        } finally {
+            mProfileManager.setCachingEnabled(false);
+            mProfileManager.resetAll();
+        }
+    }
+
+    @SmallTest
+    public void testGetProfileSummaries() {
+        ensureProfilesEnabled();
+        mProfileManager.addProfile(new Profile("PROFILE 1"));
+        mProfileManager.addProfile(new Profile("PROFILE 2"));
+
+        Profile[] profiles = mProfileManager.getProfiles();
+        ProfileSummary[] summaries = mProfileManager.getProfileSummaries();
+        assertEquals(profiles.length, summaries.length);
+        UUID activeUuid = mProfileManager.getActiveProfile().getUuid();
+        for (int i = 0; i < profiles.length; i++) {
+            assertEquals(profiles[i].getUuid(), summaries[i].getUuid());
+            assertEquals(profiles[i].getName(), summaries[i].getName());
+            assertEquals(profiles[i].getProfileType(), summaries[i].getProfileType());
+            assertEquals(activeUuid.equals(profiles[i].getUuid()), summaries[i].isActive());
+        }
+
+        // Pages of two line up with the full list
+        long generation = mProfileManager.getGeneration();
+        for (int offset = 0; offset < summaries.length; offset += 2) {
+            ProfileSummary[] page = mProfileManager.getProfileSummaries(offset, 2, generation);
+            assertEquals(Math.min(2, summaries.length - offset), page.length);
+            for (int i = 0; i < page.length; i++) {
+                assertEquals(summaries[offset + i].getUuid(), page[i].getUuid());
+            }
+        }
+        assertEquals(0,
+                mProfileManager.getProfileSummaries(summaries.length, 2, generation).length);
+
+        // Pages of an older generation are refused
+        mProfileManager.addProfile(new Profile("PROFILE 3"));
+        try {
+            mProfileManager.getProfileSummaries(0, 2, generation);
+            fail("Page of a stale generation was returned");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        mProfileManager.resetAll();
+    }
 }
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.tests.providers;
+
+import android.content.ContentResolver;
+import android.os.SystemProperties;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import cyanogenmod.providers.CMSettings;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the cache hit path of {@link CMSettings} reads with 1, 4 and 8 reader threads.
+ * "before" is a copy of the previous monitor-guarded HashMap cache, "after" is the real
+ * {@link CMSettings.System#getString} hit path. Results are logged as ns/op.
+ */
+public class CMSettingsCacheBenchmark extends AndroidTestCase {
+    private static final String TAG = CMSettingsCacheBenchmark.class.getSimpleName();
+
+    private static final int[] THREAD_COUNTS = new int[] { 1, 4, 8 };
+    private static final int WARMUP_ITERATIONS = 10000;
+    private static final int ITERATIONS = 200000;
+
+    private static final String KEY = CMSettings.System.__MAGICAL_TEST_PASSING_ENABLER;
+
+    private ContentResolver mContentResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = getContext().getContentResolver();
+        assertTrue(CMSettings.System.putString(mContentResolver, KEY, "1"));
+    }
+
+    @LargeTest
+    public void testHitPathThroughput() throws Exception {
+        final LockedCache lockedCache = new LockedCache();
+        lockedCache.put(KEY, "1");
+
+        final Reader before = new Reader() {
+            @Override
+            public String read() {
+                return lockedCache.get(KEY);
+            }
+        };
+        final Reader after = new Reader() {
+            @Override
+            public String read() {
+                return CMSettings.System.getString(mContentResolver, KEY);
+            }
+        };
+
+        // Prime the real cache so every timed read is a hit
+        assertEquals("1", after.read());
+
+        for (int threads : THREAD_COUNTS) {
+            final double beforeNs = measure(before, threads);
+            final double afterNs = measure(after, threads);
+            Log.i(TAG, String.format("%d reader thread(s): before %.1f ns/op, after %.1f ns/op",
+                    threads, beforeNs, afterNs));
+        }
+    }
+
+    private interface Reader {
+        String read();
+    }
+
+    private static double measure(final Reader reader, int threadCount) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < WARMUP_ITERATIONS; j++) {
+                        reader.read();
+                    }
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        reader.read();
+                    }
+                    done.countDown();
+                }
+            };
+            threads[i].start();
+        }
+
+        final long startNs = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsedNs = System.nanoTime() - startNs;
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Wall time per read of a single thread, so contention shows up as a larger number
+        return (double) elapsedNs / ITERATIONS;
+    }
+
+    /**
+     * Hit path of the previous NameValueCache: a system property read followed by a
+     * HashMap lookup under the cache monitor.
+     */
+    private static final class LockedCache {
+        private final HashMap<String, String> mValues = new HashMap<String, String>();
+        private long mValuesVersion = 0;
+
+        synchronized void put(String name, String value) {
+            mValuesVersion = SystemProperties.getLong(
+                    CMSettings.System.SYS_PROP_CM_SETTING_VERSION, 0);
+            mValues.put(name, value);
+        }
+
+        String get(String name) {
+            long newValuesVersion = SystemProperties.getLong(
+                    CMSettings.System.SYS_PROP_CM_SETTING_VERSION, 0);
+            synchronized (this) {
+                if (mValuesVersion != newValuesVersion) {
+                    mValues.clear();
+                    mValuesVersion = newValuesVersion;
+                }
+                return mValues.get(name);
+            }
+        }
+    }
+}
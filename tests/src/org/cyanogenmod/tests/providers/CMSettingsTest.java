@@ -17,16 +17,30 @@
 package org.cyanogenmod.tests.providers;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.pm.UserInfo;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
+import android.os.UserManager;
 import android.provider.Settings;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import cyanogenmod.providers.CMSettings;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class CMSettingsTest extends AndroidTestCase{
+    // How long the provider may take to report a removed user
+    private static final long USER_REMOVAL_TIMEOUT_MS = 10000;
+    // How long change notifications may take to arrive
+    private static final long NOTIFY_TIMEOUT_MS = 5000;
+
     private ContentResolver mContentResolver;
     private CMSettingsTestObserver mTestObserver;
 
@@ -159,6 +173,184 @@ public class CMSettingsTest extends AndroidTestCase{
         }
     }
 
+    @MediumTest
+    public void testGetGlobalStringsBatch() {
+        final String key1 = "batchKey1";
+        final String key2 = "batchKey2";
+        final String missingKey = "batchKeyMissing";
+
+        assertTrue(CMSettings.Global.putString(mContentResolver, key1, "batchValue1"));
+        assertTrue(CMSettings.Global.putString(mContentResolver, key2, "batchValue2"));
+
+        // get all at once, including a name that isn't present
+        String[] values = CMSettings.Global.getStringsForUser(mContentResolver,
+                new String[] { key1, missingKey, key2 }, UserHandle.myUserId());
+        assertEquals(3, values.length);
+        assertEquals("batchValue1", values[0]);
+        assertNull(values[1]);
+        assertEquals("batchValue2", values[2]);
+
+        // single key reads see the same values
+        assertEquals("batchValue1", CMSettings.Global.getString(mContentResolver, key1));
+        assertEquals("batchValue2", CMSettings.Global.getString(mContentResolver, key2));
+
+        // delete to clean up
+        mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ key1 });
+        mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ key2 });
+    }
+
+    @MediumTest
+    public void testGetGlobalTypedValues() throws CMSettings.CMSettingNotFoundException {
+        final String key = "typedKey";
+
+        // parsed values follow every change of the string value
+        assertTrue(CMSettings.Global.putInt(mContentResolver, key, 42));
+        assertEquals(42, CMSettings.Global.getInt(mContentResolver, key, 0));
+        assertEquals(42, CMSettings.Global.getInt(mContentResolver, key));
+        assertEquals(42L, CMSettings.Global.getLong(mContentResolver, key, 0));
+        assertEquals(42f, CMSettings.Global.getFloat(mContentResolver, key, 0f));
+        assertTrue(CMSettings.Global.getBoolean(mContentResolver, key, false));
+
+        assertTrue(CMSettings.Global.putInt(mContentResolver, key, 0));
+        assertEquals(0, CMSettings.Global.getInt(mContentResolver, key, 7));
+        assertFalse(CMSettings.Global.getBoolean(mContentResolver, key, true));
+
+        assertTrue(CMSettings.Global.putLong(mContentResolver, key, Long.MAX_VALUE));
+        assertEquals(7, CMSettings.Global.getInt(mContentResolver, key, 7));
+        assertEquals(Long.MAX_VALUE, CMSettings.Global.getLong(mContentResolver, key, 0));
+        assertTrue(CMSettings.Global.getBoolean(mContentResolver, key, true));
+
+        assertTrue(CMSettings.Global.putString(mContentResolver, key, "notANumber"));
+        assertEquals(7, CMSettings.Global.getInt(mContentResolver, key, 7));
+        assertEquals(7L, CMSettings.Global.getLong(mContentResolver, key, 7));
+        assertEquals(7f, CMSettings.Global.getFloat(mContentResolver, key, 7f));
+        assertTrue(CMSettings.Global.getBoolean(mContentResolver, key, true));
+        try {
+            CMSettings.Global.getInt(mContentResolver, key);
+            fail("Parsed an invalid integer");
+        } catch (CMSettings.CMSettingNotFoundException e) {
+            // expected
+        }
+
+        // delete to clean up
+        mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+    }
+
+    @MediumTest
+    public void testPutGlobalStringsBatch() {
+        final String[] keys = new String[] { "putBatchKey1", "putBatchKey2", "putBatchKey3" };
+        final String[] values = new String[] { "putBatchValue1", "putBatchValue2", null };
+
+        // the batch is one change, so other processes' caches are invalidated once
+        final long version = SystemProperties.getLong(
+                CMSettings.Global.SYS_PROP_CM_SETTING_VERSION, 0);
+        assertTrue(CMSettings.Global.putStringsForUser(mContentResolver, keys, values,
+                UserHandle.myUserId()));
+        assertEquals(version + 1, SystemProperties.getLong(
+                CMSettings.Global.SYS_PROP_CM_SETTING_VERSION, 0));
+
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(values[i], CMSettings.Global.getString(mContentResolver, keys[i]));
+        }
+
+        // delete to clean up
+        for (String key : keys) {
+            mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                    Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+        }
+    }
+
+    @MediumTest
+    public void testBulkInsertNotifiesChangedNames() throws Exception {
+        final String key1 = "notifyKey1";
+        final String key2 = "notifyKey2";
+        final Uri uri1 = CMSettings.Global.getUriFor(key1);
+        final Uri uri2 = CMSettings.Global.getUriFor(key2);
+
+        // collects the uris notified under the global table
+        final Set<Uri> notifiedUris = new HashSet<Uri>();
+        final ContentObserver tableObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                synchronized (notifiedUris) {
+                    notifiedUris.add(uri);
+                    notifiedUris.notifyAll();
+                }
+            }
+        };
+        mContentResolver.registerContentObserver(CMSettings.Global.CONTENT_URI, true,
+                tableObserver, UserHandle.USER_ALL);
+        try {
+            final ContentValues[] values = new ContentValues[2];
+            values[0] = new ContentValues();
+            values[0].put(Settings.NameValueTable.NAME, key1);
+            values[0].put(Settings.NameValueTable.VALUE, "1");
+            values[1] = new ContentValues();
+            values[1].put(Settings.NameValueTable.NAME, key2);
+            values[1].put(Settings.NameValueTable.VALUE, "2");
+            assertEquals(2, mContentResolver.bulkInsert(CMSettings.Global.CONTENT_URI, values));
+
+            // the changed names are notified on their own uris, not on the table uri
+            final long deadline = SystemClock.uptimeMillis() + NOTIFY_TIMEOUT_MS;
+            synchronized (notifiedUris) {
+                while (!(notifiedUris.contains(uri1) && notifiedUris.contains(uri2))) {
+                    final long waitMs = deadline - SystemClock.uptimeMillis();
+                    if (waitMs <= 0) {
+                        fail("Changed names not notified, got " + notifiedUris);
+                    }
+                    notifiedUris.wait(waitMs);
+                }
+                assertFalse(notifiedUris.contains(CMSettings.Global.CONTENT_URI));
+            }
+        } finally {
+            mContentResolver.unregisterContentObserver(tableObserver);
+            // delete to clean up
+            mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                    Settings.NameValueTable.NAME + " = ?", new String[]{ key1 });
+            mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                    Settings.NameValueTable.NAME + " = ?", new String[]{ key2 });
+        }
+    }
+
+    @LargeTest
+    public void testRemovedUserCacheDropped() throws Exception {
+        final String key = CMSettings.System.__MAGICAL_TEST_PASSING_ENABLER;
+        final UserManager userManager = UserManager.get(getContext());
+        final UserInfo removedUser = userManager.createUser("CMSettingsTest removed", 0);
+        if (removedUser == null) {
+            // No multi-user support on this device
+            return;
+        }
+        final UserInfo keptUser = userManager.createUser("CMSettingsTest kept", 0);
+        try {
+            assertNotNull(keptUser);
+            CMSettings.System.getStringForUser(mContentResolver, key, removedUser.id);
+            CMSettings.System.getStringForUser(mContentResolver, key, keptUser.id);
+            assertTrue(CMSettings.isUserCached(removedUser.id));
+
+            assertTrue(userManager.removeUser(removedUser.id));
+            // The provider learns of the removal by broadcast, then reports it with the
+            // generations read when another user's cache is brought up to date
+            final long startMs = SystemClock.elapsedRealtime();
+            while (CMSettings.isUserCached(removedUser.id)
+                    && SystemClock.elapsedRealtime() - startMs < USER_REMOVAL_TIMEOUT_MS) {
+                CMSettings.System.getStringForUser(mContentResolver, key, keptUser.id);
+                SystemClock.sleep(100);
+            }
+            assertFalse("Cache of a removed user was kept",
+                    CMSettings.isUserCached(removedUser.id));
+            assertTrue(CMSettings.isUserCached(keptUser.id));
+        } finally {
+            userManager.removeUser(removedUser.id);
+            if (keptUser != null) {
+                userManager.removeUser(keptUser.id);
+            }
+        }
+    }
+
     private class CMSettingsTestObserver extends ContentObserver {
 
         public CMSettingsTestObserver(Handler handler) {
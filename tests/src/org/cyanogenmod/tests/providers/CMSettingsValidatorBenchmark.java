@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2016, The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.tests.providers;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import cyanogenmod.providers.CMSettings;
+
+import java.util.Map;
+
+/**
+ * Measures {@link CMSettings.Validator#validate} over every entry of the System and Secure
+ * {@code VALIDATORS} maps, with a mix of valid and invalid sample values. Each map is warmed
+ * up before it is timed. Results are logged as ns/op.
+ */
+public class CMSettingsValidatorBenchmark extends AndroidTestCase {
+    private static final String TAG = CMSettingsValidatorBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 2000;
+
+    // Integers, floats, lists and garbage, so both the accept and the reject paths are timed
+    private static final String[] SAMPLE_VALUES = new String[] {
+            "0", "1", "-1", "2147483648", "abc", "0.5", "1e-3", "", "home|back",
+            "home||back|", "0 0 0", "1.0 0.5 0.25", "com.android.foo|com.android.bar" };
+
+    @LargeTest
+    public void testSystemValidators() {
+        measure("System", CMSettings.System.VALIDATORS);
+    }
+
+    @LargeTest
+    public void testSecureValidators() {
+        measure("Secure", CMSettings.Secure.VALIDATORS);
+    }
+
+    private static void measure(String label, Map<String, CMSettings.Validator> validators) {
+        final CMSettings.Validator[] array =
+                validators.values().toArray(new CMSettings.Validator[validators.size()]);
+        assertTrue(label + " has no validators", array.length > 0);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            validateAll(array);
+        }
+
+        int accepted = 0;
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            accepted += validateAll(array);
+        }
+        final long elapsedNs = System.nanoTime() - startNs;
+
+        final long ops = (long) ITERATIONS * array.length * SAMPLE_VALUES.length;
+        Log.i(TAG, String.format("%s: %d validators, %.1f ns/op, %d of %d accepted",
+                label, array.length, (double) elapsedNs / ops, accepted, ops));
+    }
+
+    private static int validateAll(CMSettings.Validator[] validators) {
+        int accepted = 0;
+        for (CMSettings.Validator validator : validators) {
+            for (String value : SAMPLE_VALUES) {
+                if (validator.validate(value)) {
+                    accepted++;
+                }
+            }
+        }
+        return accepted;
+    }
+}